@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the dispatch of the portfolio notifications on each {@link ExecutionBackend}: each
+ * operation changes every portfolio once and waits until all the notifications are delivered.
+ *
+ * <p>
+ * The listener can optionally block for a while, as when publishing to a slow broker, which is the
+ * case where the number of available threads matters. The "virtual" backend requires the benchmarks
+ * to run on Java 21 or later.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DispatchBackendBenchmark {
+
+  @Param({"shared", "platform", "virtual"})
+  String backend;
+
+  @Param({"10000"})
+  int portfolios;
+
+  @Param({"0", "50"})
+  int listenerBlockMicros;
+
+  private Portfolio[] instances;
+
+  private final AtomicLong delivered = new AtomicLong();
+
+  private long expected;
+
+  @Setup
+  public void setup() {
+    ExecutionBackend executionBackend = ExecutionBackend.forName(backend,
+        Runtime.getRuntime().availableProcessors(), "Benchmark-Dispatcher");
+    long blockNanos = TimeUnit.MICROSECONDS.toNanos(listenerBlockMicros);
+
+    instances = new Portfolio[portfolios];
+    for (int i = 0; i < portfolios; i++) {
+      instances[i] = new Portfolio("portfolio" + (i + 1),
+          new SerialExecutor(executionBackend.newLaneExecutor()), null, false);
+      instances[i].buy("item1", 100);
+      instances[i].setListener((stock, qty, version) -> {
+        if (blockNanos > 0) {
+          LockSupport.parkNanos(blockNanos);
+        }
+        delivered.incrementAndGet();
+      });
+    }
+
+    // Each listener gets the initial contents first
+    expected = portfolios;
+    awaitDelivery();
+  }
+
+  @Benchmark
+  public void dispatchToAllPortfolios() {
+    for (Portfolio portfolio : instances) {
+      portfolio.buy("item1", 1);
+    }
+    expected += portfolios;
+    awaitDelivery();
+  }
+
+  private void awaitDelivery() {
+    while (delivered.get() < expected) {
+      Thread.yield();
+    }
+  }
+}
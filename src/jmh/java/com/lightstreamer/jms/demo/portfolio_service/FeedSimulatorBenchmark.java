@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.lightstreamer.jms.demo.portfolio_service.config.Configuration;
+
+/**
+ * Measures {@link PortfolioFeedSimulator#getPortfolio}, both as a lookup of existing portfolios and
+ * as the creation of new ones.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class FeedSimulatorBenchmark {
+
+  static final int PORTFOLIOS = 100_000;
+
+  static PortfolioFeedSimulator newFeed() {
+    Configuration config = new Configuration.Builder()
+      .withPortfolioMaxNum(String.valueOf(Integer.MAX_VALUE))
+      .withDispatchThreads("1")
+      .build();
+    return new PortfolioFeedSimulator(config);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Populated {
+
+    PortfolioFeedSimulator feed;
+
+    String[] ids;
+
+    @Setup
+    public void setup() {
+      feed = newFeed();
+      ids = new String[PORTFOLIOS];
+      for (int i = 0; i < PORTFOLIOS; i++) {
+        ids[i] = "portfolio" + (i + 1);
+        feed.getPortfolio(ids[i]);
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Empty {
+
+    PortfolioFeedSimulator feed;
+
+    int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+      // Start each iteration from scratch, so that the memory in use stays bounded
+      feed = newFeed();
+      next = 0;
+    }
+  }
+
+  @Benchmark
+  @Warmup(iterations = 5, time = 1)
+  @Measurement(iterations = 5, time = 1)
+  @Threads(4)
+  public Portfolio lookup(Populated state) {
+    return state.feed.getPortfolio(state.ids[ThreadLocalRandom.current().nextInt(PORTFOLIOS)]);
+  }
+
+  @Benchmark
+  @Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+  @Measurement(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+  public Portfolio create(Empty state) {
+    return state.feed.getPortfolio("portfolio" + (++state.next));
+  }
+}
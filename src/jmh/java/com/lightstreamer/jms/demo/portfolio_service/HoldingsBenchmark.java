@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the primitive {@link Holdings} store with the <code>HashMap&lt;String, Long&gt;</code>
+ * formerly used by {@link Portfolio}, on the same change sequence: the quantity of a held stock is
+ * updated, and a further stock is added and removed. The store is sized for a universe of
+ * <code>universeSize</code> stocks, <code>heldStocks</code> of which are held, spread over the
+ * universe; the global {@link StockUniverse} is left untouched. As the service resolves a symbol to
+ * its id once, upon decoding of a request, the ids are resolved upfront, while the map is accessed
+ * by symbol.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HoldingsBenchmark {
+
+  @Param({"30", "1000", "10000"})
+  int universeSize;
+
+  @Param({"8", "16"})
+  int heldStocks;
+
+  Holdings holdings;
+
+  HashMap<String, Long> map;
+
+  int heldId;
+
+  int otherId;
+
+  String heldStock;
+
+  String otherStock;
+
+  @Setup
+  public void setup() {
+    holdings = new Holdings(universeSize);
+    map = new HashMap<>();
+    for (int i = 0; i < heldStocks; i++) {
+      int stockId = (int) ((long) i * universeSize / heldStocks);
+      holdings.set(stockId, 1000);
+      map.put(symbolOf(stockId), 1000L);
+    }
+
+    // Change a held stock from the middle and a stock not held from the end of the universe
+    heldId = (int) ((long) (heldStocks / 2) * universeSize / heldStocks);
+    otherId = universeSize - 1;
+    while (holdings.get(otherId) != 0) {
+      otherId--;
+    }
+
+    // Use non interned copies, as the keys decoded from the requests would be
+    heldStock = new String(symbolOf(heldId));
+    otherStock = new String(symbolOf(otherId));
+  }
+
+  private static String symbolOf(int stockId) {
+    return "item" + (stockId + 1);
+  }
+
+  @Benchmark
+  public long holdings() {
+    holdings.set(heldId, holdings.get(heldId) + 100);
+    holdings.set(heldId, holdings.get(heldId) - 100);
+
+    holdings.set(otherId, holdings.get(otherId) + 100);
+    holdings.set(otherId, 0);
+    return holdings.get(heldId);
+  }
+
+  @Benchmark
+  public long hashMap() {
+    map.put(heldStock, map.get(heldStock) + 100);
+    map.put(heldStock, map.get(heldStock) - 100);
+
+    Long other = map.get(otherStock);
+    map.put(otherStock, (other == null ? 0 : other) + 100);
+    map.remove(otherStock);
+    return map.get(heldStock);
+  }
+}
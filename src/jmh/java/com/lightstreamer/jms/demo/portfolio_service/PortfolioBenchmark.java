@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the buy/sell path of a {@link Portfolio}, both on a portfolio owned by a single thread
+ * and on a portfolio shared by several threads. Each operation buys and then sells back the same
+ * quantity, so that the contents stay stable across the iterations.
+ *
+ * <p>
+ * Listener calls are dispatched on the calling thread, so that the cost of the dispatch is measured
+ * without the noise of a thread pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortfolioBenchmark {
+
+  @State(Scope.Thread)
+  public static class Uncontended {
+
+    @Param({"false", "true"})
+    boolean withListener;
+
+    Portfolio portfolio;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+      portfolio = newPortfolio(withListener, blackhole);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Contended {
+
+    @Param({"false", "true"})
+    boolean withListener;
+
+    Portfolio portfolio;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+      portfolio = newPortfolio(withListener, blackhole);
+    }
+  }
+
+  static Portfolio newPortfolio(boolean withListener, Blackhole blackhole) {
+    Portfolio portfolio = new Portfolio("portfolio1", new InlineBackend().newLaneExecutor());
+    for (int i = 0; i < StockUniverse.size(); i += 3) {
+      portfolio.buy(StockUniverse.symbol(i), 1000);
+    }
+    if (withListener) {
+      portfolio.setListener((stock, qty, version) -> blackhole.consume(qty));
+    }
+    return portfolio;
+  }
+
+  @Benchmark
+  public void buySellUncontended(Uncontended state) {
+    state.portfolio.buy("item4", 100);
+    state.portfolio.sell("item4", 100);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void buySellContended(Contended state) {
+    state.portfolio.buy("item4", 100);
+    state.portfolio.sell("item4", 100);
+  }
+
+  @Benchmark
+  public void buySellNewStockUncontended(Uncontended state) {
+    // Adds and then removes a stock, which exercises the held stocks index
+    state.portfolio.buy("item2", 100);
+    state.portfolio.sell("item2", 100);
+  }
+}
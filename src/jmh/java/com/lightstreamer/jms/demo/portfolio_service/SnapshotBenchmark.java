@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the snapshotting of a {@link Portfolio}, either stock by stock or at once, for a few
+ * portfolio sizes. The snapshot is delivered on the calling thread. As the snapshot is shared until
+ * the portfolio changes, the cost of taking it again after a change is measured as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SnapshotBenchmark {
+
+  @Param({"1", "8", "30"})
+  int stocks;
+
+  Portfolio portfolio;
+
+  PortfolioListener listener;
+
+  PortfolioSnapshotListener snapshotListener;
+
+  @Setup
+  public void setup(Blackhole blackhole) {
+    portfolio = new Portfolio("portfolio1", Runnable::run);
+    for (int i = 0; i < stocks; i++) {
+      portfolio.buy(StockUniverse.symbol(i), 100 * (i + 1));
+    }
+    listener = (stock, qty, version) -> blackhole.consume(qty);
+    snapshotListener = snapshot -> blackhole.consume(snapshot);
+  }
+
+  @Benchmark
+  public void flushToListener() {
+    portfolio.flushToListener(listener);
+  }
+
+  @Benchmark
+  public void flushSnapshot() {
+    portfolio.flushSnapshot(snapshotListener);
+  }
+
+  @Benchmark
+  public void buyAndFlushSnapshot() {
+    portfolio.buy(0, 1);
+    portfolio.flushSnapshot(snapshotListener);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the cost of encoding and decoding a {@link PortfolioMessage} through Java serialization,
+ * as done by the ObjectMessage codec, and through the binary layout of the BytesMessage codec. The
+ * JMS message creation is left out, as it depends on the provider.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PortfolioMessageBenchmark {
+
+  PortfolioMessage message;
+
+  PortfolioSnapshotMessage snapshot;
+
+  byte[] serialized;
+
+  byte[] binary;
+
+  byte[] serializedSnapshot;
+
+  byte[] binarySnapshot;
+
+  @Setup
+  public void setup() throws IOException {
+    message = new PortfolioMessage("portfolio1", "item17", 2500);
+
+    String[] keys = new String[8];
+    long[] qtys = new long[8];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "item" + (i * 3 + 1);
+      qtys[i] = 100 * (i + 1);
+    }
+    snapshot = new PortfolioSnapshotMessage("portfolio1", keys, qtys);
+
+    serialized = serialize(message);
+    binary = BytesMessageCodec.toBytes(message);
+    serializedSnapshot = serialize(snapshot);
+    binarySnapshot = BytesMessageCodec.toBytes(snapshot);
+  }
+
+  static byte[] serialize(Object obj) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(obj);
+    }
+    return bytes.toByteArray();
+  }
+
+  static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+      return in.readObject();
+    }
+  }
+
+  @Benchmark
+  public byte[] encodeSerialized() throws IOException {
+    return serialize(message);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return BytesMessageCodec.toBytes(message);
+  }
+
+  @Benchmark
+  public Object decodeSerialized() throws IOException, ClassNotFoundException {
+    return deserialize(serialized);
+  }
+
+  @Benchmark
+  public PortfolioMessage decodeBinary() {
+    return BytesMessageCodec.fromBytes(binary);
+  }
+
+  @Benchmark
+  public byte[] encodeSnapshotSerialized() throws IOException {
+    return serialize(snapshot);
+  }
+
+  @Benchmark
+  public byte[] encodeSnapshotBinary() {
+    return BytesMessageCodec.toBytes(snapshot);
+  }
+
+  @Benchmark
+  public Object decodeSnapshotSerialized() throws IOException, ClassNotFoundException {
+    return deserialize(serializedSnapshot);
+  }
+
+  @Benchmark
+  public PortfolioSnapshotMessage decodeSnapshotBinary() {
+    return BytesMessageCodec.snapshotFromBytes(binarySnapshot);
+  }
+}
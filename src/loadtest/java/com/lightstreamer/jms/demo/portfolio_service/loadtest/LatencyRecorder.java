@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records latency samples, in nanoseconds, up to a fixed capacity, and computes their exact
+ * percentiles at the end of the test.
+ */
+class LatencyRecorder {
+
+  private final long[] samples;
+
+  private final AtomicInteger count = new AtomicInteger();
+
+  LatencyRecorder(int capacity) {
+    samples = new long[capacity];
+  }
+
+  void record(long nanos) {
+    int index = count.getAndIncrement();
+    if (index < samples.length) {
+      samples[index] = nanos;
+    }
+  }
+
+  int count() {
+    return Math.min(count.get(), samples.length);
+  }
+
+  /**
+   * Returns a one-line summary of the recorded samples, in milliseconds.
+   */
+  String summary() {
+    int n = count();
+    if (n == 0) {
+      return "no samples";
+    }
+
+    long[] sorted = Arrays.copyOf(samples, n);
+    Arrays.sort(sorted);
+    return String.format("samples=%d p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f (ms)", n,
+        millis(sorted, 0.50), millis(sorted, 0.90), millis(sorted, 0.99), millis(sorted, 0.999),
+        sorted[n - 1] / 1e6);
+  }
+
+  private static double millis(long[] sorted, double percentile) {
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(index, 0)] / 1e6;
+  }
+}
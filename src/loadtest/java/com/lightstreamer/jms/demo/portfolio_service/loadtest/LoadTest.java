@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.loadtest;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import javax.jms.Topic;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.App;
+import com.lightstreamer.jms.demo.portfolio_service.PortfolioService;
+import com.lightstreamer.jms.demo.portfolio_service.StockUniverse;
+import com.lightstreamer.jms.demo.portfolio_service.config.Configuration;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessage;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessageCodec;
+
+/**
+ * Boots the Portfolio service in process and drives BUY, SELL and GET_PORTFOLIO_STATUS requests
+ * into its queue at a fixed rate, then reports the sustained throughput and the latency
+ * percentiles.
+ *
+ * <p>
+ * The broker is selected through the "broker" system property, as for the service; the "Embedded"
+ * profile runs an in-VM broker, so that no external infrastructure is needed. The following
+ * arguments are accepted:
+ *
+ * <pre>
+ * --rate=N      total requests per second (default 1000)
+ * --duration=N  test duration in seconds (default 30)
+ * --senders=N   threads sending the requests (default 1)
+ * --mix=B,S,T   weights of BUY, SELL and status requests (default 45,45,10)
+ * key=value     any service.conf entry, overriding the configured value
+ * </pre>
+ *
+ * The latency of a BUY is measured from its scheduled send time to the reception of the resulting
+ * update from the topic; the latency of a status request, which asks for a single snapshot reply,
+ * to the reception of the reply. BUY and SELL orders are issued on disjoint stocks, so that each
+ * BUY can be matched with its own update; for the same reason, the measure is not meaningful with
+ * conflation enabled.
+ */
+public class LoadTest {
+
+  private static Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+  private static final long DRAIN_TIMEOUT_MILLIS = 10_000;
+
+  private final Configuration config;
+
+  private final int rate;
+
+  private final int duration;
+
+  private final int senders;
+
+  private final int buyWeight;
+
+  private final int sellWeight;
+
+  private final int statusWeight;
+
+  private final PortfolioMessageCodec codec;
+
+  /**
+   * Associates the (portfolio, stock) pairs with the scheduled send times of the BUYs waiting for
+   * their update.
+   */
+  private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Long>> pendingBuys =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Associates the correlation ids of the status requests with their scheduled send times.
+   */
+  private final ConcurrentHashMap<String, Long> pendingStatus = new ConcurrentHashMap<>();
+
+  private final AtomicLong sentRequests = new AtomicLong();
+
+  private final AtomicLong outstandingBuys = new AtomicLong();
+
+  private final AtomicLong receivedUpdates = new AtomicLong();
+
+  private final AtomicLong statusCounter = new AtomicLong();
+
+  private final LatencyRecorder buyLatencies;
+
+  private final LatencyRecorder statusLatencies;
+
+  private LoadTest(Configuration config, Properties options) {
+    this.config = config;
+    rate = Integer.parseInt(options.getProperty("rate", "1000"));
+    duration = Integer.parseInt(options.getProperty("duration", "30"));
+    senders = Integer.parseInt(options.getProperty("senders", "1"));
+
+    String[] mix = options.getProperty("mix", "45,45,10").split(",");
+    buyWeight = Integer.parseInt(mix[0].trim());
+    sellWeight = Integer.parseInt(mix[1].trim());
+    statusWeight = Integer.parseInt(mix[2].trim());
+
+    codec = PortfolioMessageCodec.forName(config.messageCodec);
+
+    int capacity = (int) Math.min((long) rate * duration + 1, Integer.MAX_VALUE - 8);
+    buyLatencies = new LatencyRecorder(capacity);
+    statusLatencies = new LatencyRecorder(capacity);
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties options = new Properties();
+    Properties overrides = new Properties();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq == -1) {
+        throw new IllegalArgumentException("Bad argument: " + arg);
+      }
+      if (arg.startsWith("--")) {
+        options.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+      } else {
+        overrides.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+      }
+    }
+
+    Configuration config = App.loadConfiguration(overrides);
+
+    // Boot the service under test
+    new PortfolioService(config).start();
+
+    new LoadTest(config, options).run();
+    System.exit(0);
+  }
+
+  private void run() throws Exception {
+    InitialContext jndiContext = config.newInitialContext();
+    ConnectionFactory connectionFactory =
+        (ConnectionFactory) jndiContext.lookup(config.connectionFactoryName);
+    Connection connection = config.username != null && config.password != null
+        ? connectionFactory.createConnection(config.username, config.password)
+        : connectionFactory.createConnection();
+
+    // Subscribe to the updates
+    Session topicSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    Topic topic =
+        lookup(jndiContext, config.topicName, () -> topicSession.createTopic(config.topicName));
+    topicSession.createConsumer(topic).setMessageListener(this::onUpdate);
+
+    // Listen to the replies to the status requests
+    Session replySession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    TemporaryQueue replyQueue = replySession.createTemporaryQueue();
+    replySession.createConsumer(replyQueue).setMessageListener(this::onReply);
+
+    connection.start();
+
+    log.info("Sending {} requests/s for {} s on {} threads; mix BUY/SELL/STATUS {}/{}/{}", rate,
+        duration, senders, buyWeight, sellWeight, statusWeight);
+
+    long start = System.nanoTime();
+    Thread[] threads = new Thread[senders];
+    for (int i = 0; i < senders; i++) {
+      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Queue queue =
+          lookup(jndiContext, config.queueName, () -> session.createQueue(config.queueName));
+      MessageProducer producer = session.createProducer(queue);
+      threads[i] = new Thread(() -> send(session, producer, replyQueue, start),
+          "LoadTest-Sender-" + (i + 1));
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long sendElapsed = System.nanoTime() - start;
+
+    // Wait for the outstanding updates and replies
+    long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+    while ((outstandingBuys.get() > 0 || !pendingStatus.isEmpty())
+        && System.currentTimeMillis() < drainDeadline) {
+      Thread.sleep(50);
+    }
+    long elapsed = System.nanoTime() - start;
+    connection.close();
+
+    double sendSeconds = sendElapsed / 1e9;
+    double seconds = elapsed / 1e9;
+    log.info(String.format("Requests sent: %d in %.2f s (%.0f requests/s)", sentRequests.get(),
+        sendSeconds, sentRequests.get() / sendSeconds));
+    log.info(String.format("Updates received: %d in %.2f s (%.0f updates/s)",
+        receivedUpdates.get(), seconds, receivedUpdates.get() / seconds));
+    log.info("Request to publish latency: {}", buyLatencies.summary());
+    log.info("Status request to reply latency: {}", statusLatencies.summary());
+    log.info("Unmatched at the end: {} BUYs, {} status requests", outstandingBuys.get(),
+        pendingStatus.size());
+  }
+
+  /**
+   * Sends this thread's share of the requests, each one at its scheduled time.
+   */
+  private void send(Session session, MessageProducer producer, TemporaryQueue replyQueue,
+      long start) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long interval = TimeUnit.SECONDS.toNanos(1) * senders / rate;
+    long count = (long) rate * duration / senders;
+    int totalWeight = buyWeight + sellWeight + statusWeight;
+
+    try {
+      for (long i = 0; i < count; i++) {
+        // Pace the requests; if late, the request is sent at once, but its latency is still
+        // measured from the scheduled time
+        long scheduled = start + i * interval;
+        long delay;
+        while ((delay = scheduled - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(delay);
+        }
+
+        String portfolioId = config.portfolioIdPrefix + (1 + random.nextInt(config.portfolioNum));
+        MapMessage request = session.createMapMessage();
+        request.setString("portfolio", portfolioId);
+
+        int pick = random.nextInt(totalWeight);
+        if (pick < buyWeight) {
+          // BUYs on the even stock ids
+          String stock = StockUniverse.symbol(2 * random.nextInt((StockUniverse.size() + 1) / 2));
+          request.setString("request", "BUY");
+          request.setString("stock", stock);
+          request.setLong("quantity", 1);
+          pendingBuys
+            .computeIfAbsent(portfolioId + "|" + stock, k -> new ConcurrentLinkedQueue<>())
+            .add(scheduled);
+          outstandingBuys.incrementAndGet();
+        } else if (pick < buyWeight + sellWeight) {
+          // SELLs on the odd stock ids
+          String stock = StockUniverse.symbol(1 + 2 * random.nextInt(StockUniverse.size() / 2));
+          request.setString("request", "SELL");
+          request.setString("stock", stock);
+          request.setLong("quantity", 1);
+        } else {
+          String correlationId = String.valueOf(statusCounter.incrementAndGet());
+          request.setString("request", "GET_PORTFOLIO_STATUS");
+          request.setBoolean("snapshot", true);
+          request.setJMSReplyTo(replyQueue);
+          request.setJMSCorrelationID(correlationId);
+          pendingStatus.put(correlationId, scheduled);
+        }
+
+        producer.send(request);
+        sentRequests.incrementAndGet();
+      }
+    } catch (JMSException e) {
+      log.error("Error while sending the requests", e);
+    }
+  }
+
+  private void onUpdate(Message message) {
+    long now = System.nanoTime();
+    receivedUpdates.incrementAndGet();
+    try {
+      PortfolioMessage update = codec.decode(message);
+      ConcurrentLinkedQueue<Long> scheduled =
+          pendingBuys.get(update.portfolioId + "|" + update.key);
+      Long sendTime = scheduled != null ? scheduled.poll() : null;
+      if (sendTime != null) {
+        outstandingBuys.decrementAndGet();
+        buyLatencies.record(now - sendTime);
+      }
+    } catch (JMSException e) {
+      log.warn("Unable to decode an update", e);
+    }
+  }
+
+  private void onReply(Message message) {
+    long now = System.nanoTime();
+    try {
+      Long sendTime = pendingStatus.remove(message.getJMSCorrelationID());
+      if (sendTime != null) {
+        statusLatencies.record(now - sendTime);
+      }
+    } catch (JMSException e) {
+      log.warn("Unable to read a reply", e);
+    }
+  }
+
+  /**
+   * Looks up a destination, falling back to a dynamic one.
+   */
+  private static <T> T lookup(InitialContext jndiContext, String name,
+      DynamicDestination<T> dynamic) throws JMSException {
+    try {
+      @SuppressWarnings("unchecked")
+      T destination = (T) jndiContext.lookup(name);
+      return destination;
+    } catch (NamingException e) {
+      return dynamic.create();
+    }
+  }
+
+  @FunctionalInterface
+  private interface DynamicDestination<T> {
+
+    T create() throws JMSException;
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.loadtest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.ExecutionBackend;
+import com.lightstreamer.jms.demo.portfolio_service.Portfolio;
+import com.lightstreamer.jms.demo.portfolio_service.PortfolioListener;
+import com.lightstreamer.jms.demo.portfolio_service.PositionObserver;
+import com.lightstreamer.jms.demo.portfolio_service.SerialExecutor;
+import com.lightstreamer.jms.demo.portfolio_service.StockUniverse;
+import com.lightstreamer.jms.demo.portfolio_service.TradeJournal;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioSnapshotMessage;
+
+/**
+ * Hammers a single {@link Portfolio} from many threads at once, with no broker involved, and checks
+ * that the mutation path keeps the semantics of the orders:
+ *
+ * <ul>
+ * <li>buys: the final quantities match the sum of the bought quantities;</li>
+ * <li>mixed: buys and oversized sells, which sell everything, never lead to a negative quantity;
+ * </li>
+ * <li>batches: pairs of stocks traded together by batches are always seen with the same quantity by
+ * the snapshots taken meanwhile;</li>
+ * <li>overflow: the buys which would overflow the quantity are ignored;</li>
+ * </ul>
+ *
+ * and, in all the scenarios, that the observer is told about every change in order, with no gaps,
+ * that the listener receives increasing versions and, finally, the final quantities. Each scenario
+ * is run with the listener notified on a thread pool, on the submitting threads, with conflation,
+ * and with the changes journaled, either periodically synced or in group commit mode, in which case
+ * the journal must end with the final quantities. The
+ * following arguments are accepted:
+ *
+ * <pre>
+ * --threads=N  threads trading on the portfolio (default 8)
+ * --orders=N   orders issued by each thread, per scenario (default 200000)
+ * --stocks=N   stocks traded, out of the stock universe (default 4)
+ * </pre>
+ *
+ * The process exits with a non-zero status if any check fails.
+ */
+public class PortfolioStressTest {
+
+  private static Logger log = LoggerFactory.getLogger(PortfolioStressTest.class);
+
+  private final int threads;
+
+  private final int orders;
+
+  private final int stocks;
+
+  private final ExecutorService dispatcher;
+
+  private final Executor inline = ExecutionBackend.forName("inline", 0, null).newLaneExecutor();
+
+  private final List<String> failures = new ArrayList<>();
+
+  private PortfolioStressTest(Properties options) {
+    threads = Integer.parseInt(options.getProperty("threads", "8"));
+    orders = Integer.parseInt(options.getProperty("orders", "200000"));
+    stocks = Math.min(Integer.parseInt(options.getProperty("stocks", "4")) & ~1,
+        StockUniverse.size() & ~1);
+    if (stocks < 2) {
+      throw new IllegalArgumentException("At least 2 stocks are needed");
+    }
+    dispatcher = Executors.newFixedThreadPool(4, r -> {
+      Thread thread = new Thread(r, "Stress-Dispatcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties options = new Properties();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq == -1) {
+        throw new IllegalArgumentException("Bad argument: " + arg);
+      }
+      options.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+    }
+
+    PortfolioStressTest test = new PortfolioStressTest(options);
+    test.run();
+    System.exit(test.failures.isEmpty() ? 0 : 1);
+  }
+
+  private void run() throws InterruptedException {
+    log.info("Trading {} orders on {} stocks from each of {} threads", orders, stocks, threads);
+
+    for (String mode : new String[] {"pool", "inline", "conflate", "journal", "group"}) {
+      buys(mode);
+      mixed(mode);
+      batches(mode);
+      overflow(mode);
+    }
+
+    if (failures.isEmpty()) {
+      log.info("All checks passed");
+    } else {
+      for (String failure : failures) {
+        log.error("FAILED: {}", failure);
+      }
+    }
+  }
+
+  /**
+   * Buys random quantities and checks the totals.
+   */
+  private void buys(String mode) throws InterruptedException {
+    Tracker tracker = new Tracker("buys", mode);
+    Portfolio portfolio = tracker.newPortfolio(mode);
+    AtomicLong[] bought = new AtomicLong[stocks];
+    for (int s = 0; s < stocks; s++) {
+      bought[s] = new AtomicLong();
+    }
+
+    trade(() -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (int i = 0; i < orders; i++) {
+        int stock = random.nextInt(stocks);
+        long qty = 1 + random.nextInt(100);
+        portfolio.buy(stock, qty);
+        bought[stock].addAndGet(qty);
+      }
+    });
+
+    PortfolioSnapshotMessage last = tracker.verify(portfolio);
+    for (int s = 0; s < stocks; s++) {
+      tracker.check(qtyOf(last, s) == bought[s].get(),
+          "final quantity of " + StockUniverse.symbol(s) + " " + qtyOf(last, s)
+              + " instead of " + bought[s].get());
+    }
+  }
+
+  /**
+   * Buys and sells random quantities, where the sells often exceed the held quantity.
+   */
+  private void mixed(String mode) throws InterruptedException {
+    Tracker tracker = new Tracker("mixed", mode);
+    Portfolio portfolio = tracker.newPortfolio(mode);
+
+    trade(() -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (int i = 0; i < orders; i++) {
+        int stock = random.nextInt(stocks);
+        long qty = 1 + random.nextInt(100);
+        if (random.nextBoolean()) {
+          portfolio.buy(stock, qty);
+        } else {
+          portfolio.sell(stock, qty * 2);
+        }
+      }
+    });
+
+    tracker.verify(portfolio);
+  }
+
+  /**
+   * Trades pairs of stocks through batches, while taking snapshots, and checks that the quantities
+   * of each pair are always seen equal.
+   */
+  private void batches(String mode) throws InterruptedException {
+    Tracker tracker = new Tracker("batches", mode);
+    Portfolio portfolio = tracker.newPortfolio(mode);
+    AtomicLong snapshots = new AtomicLong();
+
+    trade(() -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int[] stockIds = new int[2];
+      long[] qtys = new long[2];
+      for (int i = 0; i < orders; i++) {
+        int pair = random.nextInt(stocks / 2);
+        stockIds[0] = pair * 2;
+        stockIds[1] = pair * 2 + 1;
+        qtys[0] = qtys[1] = random.nextBoolean() ? 1 + random.nextInt(100)
+            : -(1 + random.nextInt(200));
+        portfolio.applyBatch(stockIds, qtys, 2);
+
+        if (i % 64 == 0) {
+          portfolio.flushSnapshot(snapshot -> {
+            snapshots.incrementAndGet();
+            for (int p = 0; p < stocks / 2; p++) {
+              if (qtyOf(snapshot, p * 2) != qtyOf(snapshot, p * 2 + 1)) {
+                tracker.check(false, "torn batch in snapshot v" + snapshot.version + ": "
+                    + qtyOf(snapshot, p * 2) + " != " + qtyOf(snapshot, p * 2 + 1));
+              }
+            }
+          });
+        }
+      }
+    });
+
+    PortfolioSnapshotMessage last = tracker.verify(portfolio);
+    for (int p = 0; p < stocks / 2; p++) {
+      tracker.check(qtyOf(last, p * 2) == qtyOf(last, p * 2 + 1),
+          "torn batch in the final snapshot");
+    }
+    log.info("{}: {} snapshots checked", tracker.name, snapshots.get());
+  }
+
+  /**
+   * Buys huge quantities, most of which would overflow.
+   */
+  private void overflow(String mode) throws InterruptedException {
+    Tracker tracker = new Tracker("overflow", mode);
+    Portfolio portfolio = tracker.newPortfolio(mode);
+
+    trade(() -> {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      for (int i = 0; i < orders / 16; i++) {
+        int stock = random.nextInt(stocks);
+        if (random.nextInt(4) == 0) {
+          portfolio.sell(stock, Long.MAX_VALUE / 4);
+        } else {
+          portfolio.buy(stock, Long.MAX_VALUE / 3);
+        }
+      }
+    });
+
+    tracker.verify(portfolio);
+  }
+
+  /**
+   * Runs the provided trading activity on all the threads at once.
+   */
+  private void trade(Runnable activity) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] traders = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      traders[t] = new Thread(() -> {
+        try {
+          start.await();
+          activity.run();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }, "Stress-Trader-" + (t + 1));
+      traders[t].start();
+    }
+    start.countDown();
+    for (Thread trader : traders) {
+      trader.join();
+    }
+  }
+
+  private static long qtyOf(PortfolioSnapshotMessage snapshot, int stockId) {
+    String symbol = StockUniverse.symbol(stockId);
+    for (int i = 0; i < snapshot.size(); i++) {
+      if (snapshot.keys[i].equals(symbol)) {
+        return snapshot.qtys[i];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Follows a portfolio as its observer and its listener, checking each call.
+   */
+  private final class Tracker implements PositionObserver, PortfolioListener {
+
+    final String name;
+
+    final boolean conflate;
+
+    // The latest quantity told to the observer, by stock
+    final long[] observed = new long[StockUniverse.size()];
+
+    // The latest quantity notified to the listener, by stock
+    final long[] notified = new long[StockUniverse.size()];
+
+    volatile long lastVersion;
+
+    final AtomicLong changes = new AtomicLong();
+
+    final AtomicLong notifications = new AtomicLong();
+
+    private final AtomicReference<String> failure = new AtomicReference<>();
+
+    // The file of the journal; null if not journaled
+    private Path journalFile;
+
+    private TradeJournal journal;
+
+    Tracker(String scenario, String mode) {
+      this.name = scenario + "/" + mode;
+      this.conflate = mode.equals("conflate");
+    }
+
+    Portfolio newPortfolio(String mode) throws InterruptedException {
+      if (mode.equals("journal") || mode.equals("group")) {
+        try {
+          journalFile = Files.createTempFile("stress-journal", ".log");
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        journal = TradeJournal.open(journalFile, 0, 10, mode.equals("group"),
+            (portfolioId, stock, qty) -> {
+            });
+      }
+      SerialExecutor lane =
+          new SerialExecutor(mode.equals("inline") ? inline : dispatcher);
+      Portfolio portfolio = new Portfolio(name, lane, journal, conflate, this, 0);
+      portfolio.setListener(this);
+
+      // Wait for the initial (empty) status, lest it be taken after the first changes and counted
+      // as further notifications
+      CountDownLatch ready = new CountDownLatch(1);
+      portfolio.flushSnapshot(snapshot -> ready.countDown());
+      ready.await();
+      return portfolio;
+    }
+
+    @Override
+    public void positionChanged(String portfolioId, int stockId, long oldQty, long newQty) {
+      // Invoked in the order of the changes, hence each change must start from the previous one
+      check(observed[stockId] == oldQty, "observer gap on " + StockUniverse.symbol(stockId)
+          + ": " + oldQty + " instead of " + observed[stockId]);
+      check(newQty >= 0 && newQty != oldQty,
+          "bad change on " + StockUniverse.symbol(stockId) + ": " + oldQty + " -> " + newQty);
+      observed[stockId] = newQty;
+      changes.incrementAndGet();
+    }
+
+    @Override
+    public void update(String stock, long qty, long version) {
+      check(qty >= 0, "negative quantity notified for " + stock + ": " + qty);
+      check(version >= lastVersion,
+          "version " + version + " notified after " + lastVersion + " for " + stock);
+      lastVersion = version;
+      notified[StockUniverse.idOf(stock)] = qty;
+      notifications.incrementAndGet();
+    }
+
+    /**
+     * Waits for the pending notifications, then checks the final contents against the observer and
+     * the listener, and returns them.
+     */
+    PortfolioSnapshotMessage verify(Portfolio portfolio) throws InterruptedException {
+      CountDownLatch done = new CountDownLatch(1);
+      AtomicReference<PortfolioSnapshotMessage> last = new AtomicReference<>();
+      portfolio.flushSnapshot(snapshot -> {
+        last.set(snapshot);
+        done.countDown();
+      });
+      if (!done.await(30, TimeUnit.SECONDS)) {
+        check(false, "notifications not drained");
+        return null;
+      }
+
+      PortfolioSnapshotMessage snapshot = last.get();
+      for (int s = 0; s < stocks; s++) {
+        long qty = qtyOf(snapshot, s);
+        check(observed[s] == qty, "observed " + observed[s] + " instead of " + qty + " for "
+            + StockUniverse.symbol(s));
+        check(notified[s] == qty, "notified " + notified[s] + " instead of " + qty + " for "
+            + StockUniverse.symbol(s));
+      }
+      check(lastVersion <= snapshot.version, "notified a version beyond the final one");
+      if (!conflate) {
+        // Each change is notified on its own
+        check(notifications.get() == changes.get(),
+            notifications.get() + " notifications for " + changes.get() + " changes");
+      }
+
+      if (journal != null) {
+        verifyJournal(snapshot);
+      }
+
+      if (failure.get() == null) {
+        log.info("{}: passed; {} changes, {} notifications, final {}", name, changes.get(),
+            notifications.get(), snapshot);
+      }
+      return snapshot;
+    }
+
+    /**
+     * Replays the journal, whose latest record of each stock must carry the final quantity.
+     */
+    private void verifyJournal(PortfolioSnapshotMessage snapshot) {
+      journal.close();
+      long[] journaled = new long[StockUniverse.size()];
+      TradeJournal.open(journalFile, 0, 1000, false,
+          (portfolioId, stock, qty) -> journaled[StockUniverse.idOf(stock)] = qty).close();
+      for (int s = 0; s < stocks; s++) {
+        check(journaled[s] == qtyOf(snapshot, s), "journaled " + journaled[s] + " instead of "
+            + qtyOf(snapshot, s) + " for " + StockUniverse.symbol(s));
+      }
+      try {
+        Files.delete(journalFile);
+      } catch (IOException e) {
+        log.warn("Could not delete [{}]", journalFile, e);
+      }
+    }
+
+    void check(boolean condition, String message) {
+      if (!condition && failure.compareAndSet(null, message)) {
+        synchronized (failures) {
+          failures.add(name + ": " + message);
+        }
+        log.error("{}: {}", name, message);
+      }
+    }
+  }
+}
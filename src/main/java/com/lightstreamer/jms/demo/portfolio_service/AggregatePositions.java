@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains the total quantity of each stock over all the portfolios, and the number of portfolios
+ * holding it, as the portfolios change. The totals are kept in {@link LongAdder}s, so that the
+ * changes of different portfolios on the same stock do not contend, and a total can be read at any
+ * time with no lock on the portfolios.
+ *
+ * <p>
+ * As the changes are applied with no global lock, the totals of different stocks read at the same
+ * time are not necessarily consistent with each other.
+ */
+final class AggregatePositions implements PositionObserver {
+
+  private static Logger log = LoggerFactory.getLogger(AggregatePositions.class);
+
+  /**
+   * The id carried by the messages of the aggregate positions, in place of a portfolio id.
+   */
+  static final String AGGREGATE_ID = "*";
+
+  /**
+   * The total quantity and the number of holders of each stock, indexed by stock id; sized upon the
+   * first change, as the stock universe may be configured after this instance is created.
+   */
+  private volatile Totals totals;
+
+  private static final class Totals {
+
+    final LongAdder[] qtys;
+
+    final LongAdder[] holders;
+
+    Totals(int size) {
+      qtys = new LongAdder[size];
+      holders = new LongAdder[size];
+      for (int i = 0; i < size; i++) {
+        qtys[i] = new LongAdder();
+        holders[i] = new LongAdder();
+      }
+    }
+  }
+
+  @Override
+  public void positionChanged(String portfolioId, int stockId, long oldQty, long newQty) {
+    Totals totals = totals();
+    totals.qtys[stockId].add(newQty - oldQty);
+    if (oldQty == 0 && newQty != 0) {
+      totals.holders[stockId].increment();
+    } else if (oldQty != 0 && newQty == 0) {
+      totals.holders[stockId].decrement();
+    }
+  }
+
+  /**
+   * Returns the total quantity of a stock over all the portfolios.
+   */
+  long totalQty(int stockId) {
+    return totals().qtys[stockId].sum();
+  }
+
+  /**
+   * Returns the number of portfolios holding a stock.
+   */
+  long holders(int stockId) {
+    return totals().holders[stockId].sum();
+  }
+
+  /**
+   * Passes the total quantity of each stock held by some portfolio to the provided consumer, in
+   * stock id order.
+   */
+  void forEachHeld(BiConsumer<String, Long> consumer) {
+    Totals totals = totals();
+    for (int stockId = 0; stockId < totals.qtys.length; stockId++) {
+      long qty = totals.qtys[stockId].sum();
+      if (qty != 0) {
+        consumer.accept(StockUniverse.symbol(stockId), qty);
+      }
+    }
+  }
+
+  /**
+   * Starts passing the totals which changed to the provided consumer, every
+   * <code>intervalMillis</code>, on a dedicated thread.
+   */
+  void startPublishing(long intervalMillis, BiConsumer<String, Long> publisher) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("Portfolio-Aggregates", true));
+    long[] published = new long[StockUniverse.size()];
+    scheduler.scheduleAtFixedRate(() -> publishChanges(published, publisher), 0, intervalMillis,
+        TimeUnit.MILLISECONDS);
+    log.info("Publishing the aggregate positions every {} ms", intervalMillis);
+  }
+
+  private void publishChanges(long[] published, BiConsumer<String, Long> publisher) {
+    Totals totals = totals();
+    for (int stockId = 0; stockId < published.length; stockId++) {
+      long qty = totals.qtys[stockId].sum();
+      if (qty != published[stockId]) {
+        try {
+          publisher.accept(StockUniverse.symbol(stockId), qty);
+          published[stockId] = qty;
+        } catch (RuntimeException e) {
+          log.warn("Error while publishing the aggregate position of {}",
+              StockUniverse.symbol(stockId), e);
+        }
+      }
+    }
+  }
+
+  private Totals totals() {
+    Totals current = totals;
+    if (current == null) {
+      synchronized (this) {
+        current = totals;
+        if (current == null) {
+          current = new Totals(StockUniverse.size());
+          totals = current;
+        }
+      }
+    }
+    return current;
+  }
+}
@@ -15,6 +15,7 @@
 
 package com.lightstreamer.jms.demo.portfolio_service;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
@@ -32,21 +33,11 @@ public class App {
   private static final String broker = System.getProperty("broker", DEFAULT_BROKER);
 
   public static void main(String[] args) {
-    try (InputStream is = App.class.getResourceAsStream("/service.conf")) {
+    try {
       log.info("Portfolio Demo service starting. Loading configuration...");
 
-      Properties props = new Properties();
-      props.load(is);
-
       // Read parameters
-      Configuration config = new Configuration.Builder().withJmsURL(getProperty(props, "jmsUrl"))
-        .withInitialContextFactory(getProperty(props, "initialContextFactory"))
-        .withConnectionFactoryName(props.getProperty("connectionFactoryName"))
-        .withTopicName(props.getProperty("topicName"))
-        .withQueueName(props.getProperty("queueName"))
-        .withPortfolioNum(props.getProperty("portfolioNum"))
-        .withCredentials(getProperty(props, "user"), getProperty(props, "password"))
-        .build();
+      Configuration config = loadConfiguration(new Properties());
 
       // Create and start our service passing the supplied configuration
       new PortfolioService(config).start();
@@ -59,6 +50,58 @@ public class App {
     }
   }
 
+  /**
+   * Loads the configuration from the service.conf resource, for the broker selected through the
+   * "broker" system property. The provided overrides take precedence over the service.conf entries.
+   */
+  public static Configuration loadConfiguration(Properties overrides) throws IOException {
+    Properties props = new Properties();
+    try (InputStream is = App.class.getResourceAsStream("/service.conf")) {
+      props.load(is);
+    }
+    props.putAll(overrides);
+
+    return new Configuration.Builder().withJmsURL(getProperty(props, "jmsUrl"))
+      .withInitialContextFactory(getProperty(props, "initialContextFactory"))
+      .withConnectionFactoryName(props.getProperty("connectionFactoryName"))
+      .withTopicName(props.getProperty("topicName"))
+      .withQueueName(props.getProperty("queueName"))
+      .withPortfolioNum(props.getProperty("portfolioNum"))
+      .withPortfolioIdPrefix(props.getProperty("portfolioIdPrefix"))
+      .withPortfolioMaxNum(props.getProperty("portfolioMaxNum"))
+      .withStocks(props.getProperty("stockNum"), props.getProperty("stockFile"))
+      .withExecutionBackend(props.getProperty("executionBackend"))
+      .withDispatchThreads(props.getProperty("dispatchThreads"))
+      .withRequestThreads(props.getProperty("requestThreads"))
+      .withPipelineRingSize(props.getProperty("pipelineRingSize"))
+      .withDispatchQueue(props.getProperty("dispatchQueueCapacity"),
+          props.getProperty("dispatchQueuePolicy"))
+      .withConflation(props.getProperty("conflationInterval"),
+          props.getProperty("conflationMaxPending"))
+      .withPublishBatch(props.getProperty("publishBatchSize"),
+          props.getProperty("publishBatchInterval"))
+      .withMessageCodec(props.getProperty("messageCodec"))
+      .withPublishSessions(props.getProperty("publishSessions"))
+      .withMetricsLogInterval(props.getProperty("metricsLogInterval"))
+      .withJournal(props.getProperty("journalFile"), props.getProperty("journalSyncInterval"),
+          props.getProperty("journalGroupCommit"))
+      .withCheckpoint(props.getProperty("checkpointFile"), props.getProperty("checkpointInterval"))
+      .withTradeFlow(props.getProperty("tradeRate"), props.getProperty("tradeThreads"),
+          props.getProperty("tradeSeed"))
+      .withTradeDistributions(props.getProperty("tradePortfolioDistribution"),
+          props.getProperty("tradeStockDistribution"), props.getProperty("tradeZipfExponent"))
+      .withTradeBursts(props.getProperty("tradeBurstFactor"),
+          props.getProperty("tradeBurstDuration"), props.getProperty("tradeBurstInterval"))
+      .withChangeLogSize(props.getProperty("changeLogSize"))
+      .withAggregates(props.getProperty("aggregateTopicName"),
+          props.getProperty("aggregateInterval"))
+      .withValuation(props.getProperty("valuationTopicName"),
+          props.getProperty("valuationInterval"))
+      .withPriceSource(props.getProperty("priceSource"), props.getProperty("priceInterval"))
+      .withCredentials(getProperty(props, "user"), getProperty(props, "password"))
+      .build();
+  }
+
   private static String getProperty(Properties props, String key) {
     return props.getProperty(broker + "." + key);
   }
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Provides the threads on which the {@link SerialExecutor} lanes run, e.g. the lanes that dispatch
+ * the portfolio notifications, along with the responses to the status requests, and the lanes that
+ * process the requests. Whatever the backend, each lane still runs its tasks one at a time, in FIFO
+ * order.
+ */
+public interface ExecutionBackend {
+
+  /**
+   * Returns the executor on which a new lane is run.
+   */
+  Executor newLaneExecutor();
+
+  /**
+   * Creates the backend with the provided configuration name: "shared" (the lanes share a fixed
+   * pool of platform threads), "platform" (each lane has its own platform thread) or "virtual"
+   * (each run of a lane takes a new virtual thread; requires Java 21 or later) or "inline" (each
+   * lane runs on the threads that submit to it).
+   *
+   * @param threads the number of threads of the shared pool; ignored by the other backends.
+   * @param threadPrefix the prefix of the names of the created threads.
+   */
+  static ExecutionBackend forName(String name, int threads, String threadPrefix) {
+    switch (name) {
+      case "shared":
+        return new SharedPoolBackend(threads, threadPrefix);
+
+      case "platform":
+        return new ThreadPerLaneBackend(threadPrefix);
+
+      case "virtual":
+        return new VirtualThreadBackend(threadPrefix);
+
+      case "inline":
+        return new InlineBackend();
+
+      default:
+        throw new IllegalArgumentException("Unknown execution backend: " + name);
+    }
+  }
+}
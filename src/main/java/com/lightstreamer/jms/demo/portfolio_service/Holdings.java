@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+/**
+ * Primitive store of the quantities held in a portfolio, indexed by stock id (see
+ * {@link StockUniverse}). Besides the dense array of quantities, a compact list of the held stocks
+ * is maintained, so that the contents can be iterated without scanning the whole universe.
+ *
+ * <p>
+ * No allocation takes place after construction. The class is not thread safe: the owner is in
+ * charge of the synchronization.
+ */
+final class Holdings {
+
+  /**
+   * Associates stock ids with quantities; a zero value means that the stock is not held.
+   */
+  private final long[] quantities;
+
+  /**
+   * The ids of the held stocks, in the first <code>size</code> positions.
+   */
+  private final int[] held;
+
+  /**
+   * Associates stock ids with their position in <code>held</code>, or -1 if the stock is not held.
+   */
+  private final int[] positions;
+
+  private int size;
+
+  Holdings(int universeSize) {
+    quantities = new long[universeSize];
+    held = new int[universeSize];
+    positions = new int[universeSize];
+    for (int i = 0; i < universeSize; i++) {
+      positions[i] = -1;
+    }
+  }
+
+  /**
+   * Returns the quantity held for the provided stock, or 0 if the stock is not held.
+   */
+  long get(int stockId) {
+    return quantities[stockId];
+  }
+
+  /**
+   * Sets the quantity for the provided stock; a zero quantity removes the stock.
+   */
+  void set(int stockId, long qty) {
+    assert (qty >= 0);
+
+    int pos = positions[stockId];
+    if (qty == 0) {
+      if (pos != -1) {
+        // Move the last held stock in place of the removed one
+        int last = held[--size];
+        held[pos] = last;
+        positions[last] = pos;
+        positions[stockId] = -1;
+      }
+    } else if (pos == -1) {
+      positions[stockId] = size;
+      held[size++] = stockId;
+    }
+    quantities[stockId] = qty;
+  }
+
+  /**
+   * Returns the number of held stocks.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns the id of the held stock at the provided position, in the range [0, size).
+   */
+  int stockAt(int index) {
+    return held[index];
+  }
+
+  /**
+   * Returns the quantity of the held stock at the provided position, in the range [0, size).
+   */
+  long quantityAt(int index) {
+    return quantities[held[index]];
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the lanes on the threads that submit their tasks, with no hand-off. A lane still runs its
+ * tasks one at a time: a task submitted while the lane is busy on another thread is run by that
+ * thread. Meant for the {@link PortfolioPipeline}, whose apply stage is single-threaded.
+ *
+ * <p>
+ * A run submitted by a running one, e.g. by a lane which yields the thread after a batch of tasks,
+ * is deferred until the running one completes, so that the stack does not grow with the number of
+ * batches run in a row by a busy thread.
+ */
+final class InlineBackend implements ExecutionBackend {
+
+  private static final Executor CALLER_RUNS = new CallerRuns();
+
+  @Override
+  public Executor newLaneExecutor() {
+    return CALLER_RUNS;
+  }
+
+  @Override
+  public String toString() {
+    return "the submitting threads";
+  }
+
+  private static final class CallerRuns implements Executor {
+
+    /**
+     * The state of the runs on the current thread, kept across the runs, so that nothing is
+     * allocated upon each one.
+     */
+    private final ThreadLocal<Trampoline> trampolines = ThreadLocal.withInitial(Trampoline::new);
+
+    @Override
+    public void execute(Runnable command) {
+      Trampoline trampoline = trampolines.get();
+      if (trampoline.running) {
+        trampoline.deferred.add(command);
+        return;
+      }
+
+      trampoline.running = true;
+      try {
+        Runnable next = command;
+        do {
+          next.run();
+        } while ((next = trampoline.deferred.poll()) != null);
+      } finally {
+        trampoline.deferred.clear();
+        trampoline.running = false;
+      }
+    }
+  }
+
+  private static final class Trampoline {
+
+    /**
+     * The runs deferred by the running one.
+     */
+    final ArrayDeque<Runnable> deferred = new ArrayDeque<>();
+
+    boolean running;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names the created threads after a prefix, to make them recognizable in logs and thread dumps.
+ */
+class NamedThreadFactory implements ThreadFactory {
+
+  private final String prefix;
+
+  private final boolean daemon;
+
+  private final AtomicInteger count = new AtomicInteger();
+
+  NamedThreadFactory(String prefix, boolean daemon) {
+    this.prefix = prefix;
+    this.daemon = daemon;
+  }
+
+  @Override
+  public Thread newThread(Runnable r) {
+    Thread thread = new Thread(r, prefix + "-" + count.incrementAndGet());
+    thread.setDaemon(daemon);
+    return thread;
+  }
+}
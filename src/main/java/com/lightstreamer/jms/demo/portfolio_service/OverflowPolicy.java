@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+/**
+ * What a bounded {@link SerialExecutor} does with a new task when it is full.
+ */
+public enum OverflowPolicy {
+
+  /**
+   * The submitter waits until there is room, so that the backpressure propagates to it.
+   */
+  BLOCK("block"),
+
+  /**
+   * The oldest pending task is discarded to make room.
+   */
+  DROP_OLDEST("drop-oldest"),
+
+  /**
+   * The pending notifications of the same stock are merged, so that only the newest quantity is
+   * delivered; the executor itself behaves as with {@link #BLOCK}, which only applies to the
+   * notifications that cannot be merged.
+   */
+  CONFLATE("conflate"),
+
+  /**
+   * The new task is refused with a {@link java.util.concurrent.RejectedExecutionException}.
+   */
+  FAIL_FAST("fail-fast");
+
+  private final String configName;
+
+  OverflowPolicy(String configName) {
+    this.configName = configName;
+  }
+
+  /**
+   * Returns the policy with the provided configuration name.
+   */
+  public static OverflowPolicy forName(String name) {
+    for (OverflowPolicy policy : values()) {
+      if (policy.configName.equals(name)) {
+        return policy;
+      }
+    }
+    throw new IllegalArgumentException("Unknown overflow policy: " + name);
+  }
+
+  @Override
+  public String toString() {
+    return configName;
+  }
+}
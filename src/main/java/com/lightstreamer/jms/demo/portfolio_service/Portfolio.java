@@ -15,55 +15,293 @@
 
 package com.lightstreamer.jms.demo.portfolio_service;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.stream.Stream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioSnapshotMessage;
+
 /**
  * Manages the contents for a single portfolio. The contents can be changed through "buy" and "sell"
  * methods and can be inquired through a listener; upon setting of a new listener, the current
  * contents are notified, followed by the notifications of subsequent content changes. To make it
- * simple, a single listener is allowed at each time. All methods are synchronized, but none can be
- * blocking. The calls to the listener are enqueued and send from a local thread; they may occur
- * just after "removeListener" has been issued.
+ * simple, a single listener is allowed at each time. No method is blocking, unless the executor is
+ * bounded with the BLOCK policy and full, or the journal is full. The calls to the listener are sent
+ * from a thread borrowed from a shared executor, in FIFO order; they may occur just after
+ * "removeListener" has been issued.
+ *
+ * <p>
+ * The contents are kept in a mutable store, changed in place under the lock of the portfolio, which
+ * is only held to apply a change and to queue it, by version, among the changes not yet published;
+ * the journaling, the observer and the listener are dealt with outside of the lock. Each change is
+ * published on the executor, dedicated to this instance: the changes applied since the previous
+ * publication are taken under the lock, then told to the observer and notified to the listener, all
+ * in the order of the versions.
+ *
+ * <p>
+ * If the changes are journaled, they are appended to the journal after being applied, still in the
+ * order of the versions: a change applied while another thread is appending is appended by the next
+ * append of either thread, hence concurrent changes are appended together. As a change only returns
+ * once appended, only the changes of the last sync interval of the journal may be lost in case of a
+ * crash, or none, if the journal is in group commit mode.
+ *
+ * <p>
+ * If conflation is enabled, only the newest quantity of each stock changed since the previous
+ * publication is notified, so that a slow listener only receives the newest quantities.
+ *
+ * <p>
+ * Each change of a stock increments the version of the portfolio, which is carried by the
+ * notifications, and it is kept in a bounded log, if configured, so that the changes since a recent
+ * version can be retrieved. The quantities restored from persistent storage are not versioned, hence
+ * the versions start from a base derived from the start time of the service, so that a version
+ * issued before a restart is never taken as a recent one.
+ *
+ * <p>
+ * The current contents are also kept as an immutable snapshot, built upon the first status request
+ * following a change and then shared by the subsequent ones until the next change. With the bytes
+ * codec, the encoded form is kept by the snapshot as well, hence it is shared too; the other codecs
+ * build their message body from the snapshot upon each response.
  */
 public class Portfolio {
 
   private Logger log = LoggerFactory.getLogger(Portfolio.class);
 
+  /**
+   * The version of all the portfolios upon startup; up to 2^20 changes per millisecond of uptime
+   * would be needed for a portfolio to reach the base of the next start.
+   */
+  private static final long VERSION_BASE = System.currentTimeMillis() << 20;
+
+  /**
+   * The initial number of changes that can be kept while not yet published or journaled; a power
+   * of two.
+   */
+  private static final int INITIAL_PENDING_SIZE = 8;
+
   /**
    * Single listener for the contents.
    */
-  private PortfolioListener listener;
+  private volatile PortfolioListener listener;
 
   private final String id;
 
   /**
-   * Used to enqueue the calls to the listener.
+   * Used to publish the changes and to enqueue the calls to the listener.
+   */
+  private final SerialExecutor executor;
+
+  /**
+   * The portfolio contents; associates stock ids (see {@link StockUniverse}) with quantities; only
+   * stocks with positive quantities are included. Guarded by the lock.
+   */
+  private final Holdings quantities = new Holdings(StockUniverse.size());
+
+  /**
+   * The number of changes so far, that is the version of the contents; guarded by the lock.
+   */
+  private long version = VERSION_BASE;
+
+  /**
+   * The current contents, as of the current version; null if changed since the last snapshot was
+   * taken. Guarded by the lock.
+   */
+  private PortfolioSnapshotMessage snapshot;
+
+  /**
+   * The stock, the old and the new quantity of the changes not yet published or not yet journaled,
+   * by version modulo the size, which is a power of two grown upon need, and whether each change
+   * belongs to the same batch as the previous one. Guarded by the lock.
+   */
+  private int[] pendingStocks = new int[INITIAL_PENDING_SIZE];
+
+  private long[] pendingOldQtys = new long[INITIAL_PENDING_SIZE];
+
+  private long[] pendingNewQtys = new long[INITIAL_PENDING_SIZE];
+
+  private boolean[] pendingJoined = new boolean[INITIAL_PENDING_SIZE];
+
+  /**
+   * Publishes the changes applied so far; enqueued upon a change, unless already pending.
    */
-  private final ExecutorService executor;
+  private final Runnable publisher = this::publish;
+
+  /**
+   * Tells whether the publisher is enqueued and has not started yet, hence it will also publish the
+   * changes applied meanwhile. Guarded by the lock.
+   */
+  private boolean publishScheduled;
+
+  /**
+   * The version of the latest change taken for publication; guarded by the lock.
+   */
+  private long publishedVersion = VERSION_BASE;
+
+  /**
+   * The changes being published, in the order of the versions, from the one following
+   * <code>publishingFrom</code>. Accessed on the executor only.
+   */
+  private int[] publishingStocks = new int[INITIAL_PENDING_SIZE];
+
+  private long[] publishingOldQtys = new long[INITIAL_PENDING_SIZE];
+
+  private long[] publishingNewQtys = new long[INITIAL_PENDING_SIZE];
+
+  private long publishingFrom;
+
+  private int publishingCount;
+
+  /**
+   * Where the changes are recorded once applied; null if not journaled.
+   */
+  private final TradeJournal journal;
+
+  /**
+   * The encoded id, as needed by the journal.
+   */
+  private final byte[] journalId;
+
+  /**
+   * The version of the latest journaled change; guarded by the lock.
+   */
+  private long journaledVersion = VERSION_BASE;
+
+  /**
+   * Tells whether a thread is appending changes to the journal, in which case the others wait for
+   * it; guarded by the lock.
+   */
+  private boolean journaling;
+
+  /**
+   * The number of threads waiting for the appending thread; guarded by the lock. They are only
+   * notified if any, so that the lock is not inflated needlessly.
+   */
+  private int journalWaiters;
+
+  /**
+   * The stock and the new quantity of the changes being appended to the journal, and whether each
+   * change belongs to the same batch as the previous one. Accessed by the appending thread only.
+   */
+  private int[] journalingStocks;
+
+  private long[] journalingQtys;
+
+  private boolean[] journalingJoined;
+
+  /**
+   * Tells whether only the newest change of each stock is notified upon each publication.
+   */
+  private final boolean conflate;
+
+  /**
+   * Open addressing set of the ids of the stocks already met, plus one, while conflating the
+   * changes being published; sized after the number of changes, rather than the universe, and
+   * allocated upon first need. Accessed on the executor only.
+   */
+  private int[] seenStocks;
+
+  /**
+   * The number of notifications skipped in favour of newer ones; written on the executor only.
+   */
+  private volatile long conflated;
+
+  /**
+   * Told about every change of the quantities; null if not needed.
+   */
+  private final PositionObserver observer;
+
+  /**
+   * The stock and the new quantity of the latest published changes, by version modulo the log size;
+   * null if no log is kept. Accessed on the executor only.
+   */
+  private final int[] logStocks;
+
+  private final long[] logQtys;
+
+  public Portfolio(String id, Executor dispatcher) {
+    // Create the executor for this instance on top of the shared dispatcher. The SerialExecutor
+    // ensures a FIFO behaviour
+    this(id, new SerialExecutor(dispatcher), null, false);
+  }
 
   /**
-   * The portfolio contents; associates stock ids with quantities; only stocks with positive
-   * quantities are included.
+   * Creates a portfolio which notifies the listener through the provided executor, dedicated to
+   * this instance, and records its changes in the provided journal, if not null.
    */
-  private final HashMap<String, Long> quantities = new HashMap<>();
+  public Portfolio(String id, SerialExecutor executor, TradeJournal journal, boolean conflate) {
+    this(id, executor, journal, conflate, null, 0);
+  }
 
-  public Portfolio(String id) {
+  /**
+   * Creates a portfolio as above, which also tells the provided observer, if not null, about every
+   * change of the quantities, and keeps a log of its latest <code>changeLogSize</code> changes.
+   */
+  public Portfolio(String id, SerialExecutor executor, TradeJournal journal, boolean conflate,
+      PositionObserver observer, int changeLogSize) {
     this.id = id;
+    this.observer = observer;
+    this.logStocks = changeLogSize > 0 ? new int[changeLogSize] : null;
+    this.logQtys = changeLogSize > 0 ? new long[changeLogSize] : null;
+    this.executor = executor;
+    this.journal = journal;
+    this.journalId = journal != null ? id.getBytes(StandardCharsets.UTF_8) : null;
+    this.conflate = conflate;
+  }
+
+  /**
+   * Returns the number of listener calls enqueued and not yet completed, including the changes not
+   * yet published.
+   */
+  int pendingNotifications() {
+    long unpublished;
+    synchronized (this) {
+      unpublished = unpublished();
+    }
+    return (int) Math.min(executor.depth() + unpublished, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the number of changes applied and not yet published; invoked under the lock.
+   */
+  private long unpublished() {
+    return version - publishedVersion;
+  }
+
+  /**
+   * Returns the max number of listener calls ever enqueued and not yet completed at the same time.
+   */
+  int maxPendingNotifications() {
+    return executor.maxDepth();
+  }
+
+  /**
+   * Returns the number of listener calls discarded because the executor was full.
+   */
+  long droppedNotifications() {
+    return executor.dropped();
+  }
+
+  /**
+   * Returns the number of listener calls skipped in favour of newer ones.
+   */
+  long conflatedNotifications() {
+    return conflated;
+  }
 
-    // Create the executor for this instance. The SingleThreadExecutor ensures a FIFO behaviour
-    executor = Executors.newSingleThreadExecutor();
+  public void buy(String stock, long qty) {
+    buy(stockIdOf(stock), qty);
   }
 
-  public synchronized void buy(String stock, long qty) {
+  /**
+   * Buys a stock identified by its id (see {@link StockUniverse}), with no need to resolve the
+   * symbol again.
+   */
+  public void buy(int stockId, long qty) {
+    String stock = symbolOf(stockId);
     if (qty <= 0) {
 
       // We can't buy 0 or less...
@@ -72,13 +310,24 @@ public class Portfolio {
           "Cannot buy " + qty + " " + stock + " for " + id + " use an integer greater than 0");
     }
 
-    log.debug("Buying " + qty + " " + stock + " for " + id);
+    if (log.isDebugEnabled()) {
+      log.debug("Buying " + qty + " " + stock + " for " + id);
+    }
 
     // Pass the quantity to add to the changeQty method
-    changeQty(stock, qty);
+    changeQty(stockId, qty);
   }
 
-  public synchronized void sell(String stock, long qty) {
+  public void sell(String stock, long qty) {
+    sell(stockIdOf(stock), qty);
+  }
+
+  /**
+   * Sells a stock identified by its id (see {@link StockUniverse}), with no need to resolve the
+   * symbol again.
+   */
+  public void sell(int stockId, long qty) {
+    String stock = symbolOf(stockId);
     if (qty <= 0) {
 
       // We can't sell 0 or less...
@@ -88,27 +337,375 @@ public class Portfolio {
           "Cannot sell " + qty + " " + stock + " for " + id + " use an integer greater than 0");
     }
 
-    log.debug("Selling " + qty + " " + stock + " for " + id);
+    if (log.isDebugEnabled()) {
+      log.debug("Selling " + qty + " " + stock + " for " + id);
+    }
 
     // Change the quantity sing and pass it to the changeQty method
-    changeQty(stock, -qty);
+    changeQty(stockId, -qty);
   }
 
-  private synchronized void changeQty(String stock, long qty) {
-    if (!isValidStock(stock)) {
+  /**
+   * Resolves a stock symbol, which also validates the stock.
+   */
+  private int stockIdOf(String stock) {
+    int stockId = StockUniverse.idOf(stock);
+    if (stockId == -1) {
       log.warn(stock + " does not exist");
       throw new IllegalArgumentException(stock + " does not exist");
     }
+    return stockId;
+  }
 
-    // Get the old quantity for the stock
-    Long oldQty = quantities.get(stock);
+  /**
+   * Returns the symbol of a stock id, which also validates the stock.
+   */
+  private String symbolOf(int stockId) {
+    if (!StockUniverse.isValid(stockId)) {
+      log.warn("Stock id " + stockId + " does not exist");
+      throw new IllegalArgumentException("Stock id " + stockId + " does not exist");
+    }
+    return StockUniverse.symbol(stockId);
+  }
+
+  private void changeQty(int stockId, long qty) {
+    long oldQty;
     long newQty;
-    if (oldQty == null) {
-      // If oldQty is null it means that we have not that stock on our portfolio
+    long changed;
+    boolean publish;
+    int taken = 0;
+    synchronized (this) {
+      // Refuse the order upfront if its publication would be refused, so that no change goes
+      // unnotified
+      checkRoom();
+
+      // Get the old quantity for the stock and compute the new one
+      oldQty = quantities.get(stockId);
+      newQty = nextQty(oldQty, qty);
+      if (newQty == oldQty) {
+        // The order has to be ignored
+        changed = 0;
+        publish = false;
+      } else {
+        changed = apply(stockId, oldQty, newQty, false);
+        publish = claimPublish();
+        if (journal != null && !journaling) {
+          taken = takeUnjournaled();
+        }
+      }
+    }
+
+    warnAdjusted(StockUniverse.symbol(stockId), oldQty, qty);
+    if (changed != 0) {
+      settleChanges(changed, taken, publish);
+    }
+  }
+
+  /**
+   * Changes the quantity of a stock and queues the change for publication and journaling, then
+   * returns the version of the change; invoked under the lock.
+   *
+   * @param joined whether the change belongs to the same batch as the previous one, hence it has
+   *        to be journaled along with it.
+   */
+  private long apply(int stockId, long oldQty, long newQty, boolean joined) {
+    // Make room for the change among the pending ones, if needed
+    long oldest = journal != null ? Math.min(publishedVersion, journaledVersion) : publishedVersion;
+    if (version - oldest == pendingStocks.length) {
+      growPending(oldest);
+    }
+
+    quantities.set(stockId, newQty);
+    snapshot = null;
+
+    long next = version + 1;
+    int slot = (int) next & (pendingStocks.length - 1);
+    pendingStocks[slot] = stockId;
+    pendingOldQtys[slot] = oldQty;
+    pendingNewQtys[slot] = newQty;
+    pendingJoined[slot] = joined;
+    version = next;
+    return next;
+  }
+
+  /**
+   * Doubles the room for the pending changes, which follow the provided version; invoked under the
+   * lock.
+   */
+  private void growPending(long oldest) {
+    int size = pendingStocks.length * 2;
+    int[] stocks = new int[size];
+    long[] oldQtys = new long[size];
+    long[] newQtys = new long[size];
+    boolean[] joined = new boolean[size];
+    for (long v = oldest + 1; v <= version; v++) {
+      int from = (int) v & (pendingStocks.length - 1);
+      int to = (int) v & (size - 1);
+      stocks[to] = pendingStocks[from];
+      oldQtys[to] = pendingOldQtys[from];
+      newQtys[to] = pendingNewQtys[from];
+      joined[to] = pendingJoined[from];
+    }
+    pendingStocks = stocks;
+    pendingOldQtys = oldQtys;
+    pendingNewQtys = newQtys;
+    pendingJoined = joined;
+  }
+
+  /**
+   * Tells whether the publisher has to be enqueued for a new change, that is, unless it is already
+   * pending, in which case it will also publish the new change; invoked under the lock.
+   */
+  private boolean claimPublish() {
+    if (publishScheduled) {
+      return false;
+    }
+    publishScheduled = true;
+    return true;
+  }
+
+  /**
+   * Journals the changes up to the provided version, either by appending the ones already taken,
+   * if any, or as {@link #journalUpTo} does, then enqueues the publisher, if claimed; invoked
+   * outside of the lock.
+   */
+  private void settleChanges(long changed, int taken, boolean publish) {
+    if (taken > 0) {
+      appendTaken(taken);
+    } else if (journal != null) {
+      journalUpTo(changed);
+    }
+    if (publish) {
+      schedulePublish();
+    }
+  }
+
+  /**
+   * Appends to the journal the changes up to the provided version, unless already done; invoked
+   * outside of the lock. Only one thread at a time appends the changes of this portfolio, hence
+   * they are appended in the order of the versions; a thread that finds its change being appended
+   * by another thread waits for it, while the changes applied meanwhile are taken by the next
+   * thread.
+   *
+   * @throws java.io.UncheckedIOException if the journal cannot take the changes; they are kept
+   *         applied, and will be appended along with the next change.
+   */
+  private void journalUpTo(long target) {
+    int taken = 0;
+    boolean interrupted = false;
+    synchronized (this) {
+      while (journaling && journaledVersion < target) {
+        journalWaiters++;
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // The change is already applied; let it be journaled anyway
+          interrupted = true;
+        } finally {
+          journalWaiters--;
+        }
+      }
+      if (journaledVersion < target) {
+        taken = takeUnjournaled();
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (taken > 0) {
+      appendTaken(taken);
+    }
+  }
+
+  /**
+   * Takes all the changes not yet journaled, including the ones applied by other threads, to be
+   * appended by {@link #appendTaken}, and returns their number; invoked under the lock, when no
+   * other thread is appending.
+   */
+  private int takeUnjournaled() {
+    journaling = true;
+    int count = (int) (version - journaledVersion);
+    if (journalingStocks == null || journalingStocks.length < count) {
+      int size = Math.max(count, INITIAL_PENDING_SIZE);
+      journalingStocks = new int[size];
+      journalingQtys = new long[size];
+      journalingJoined = new boolean[size];
+    }
+    int mask = pendingStocks.length - 1;
+    for (int i = 0; i < count; i++) {
+      int slot = (int) (journaledVersion + 1 + i) & mask;
+      journalingStocks[i] = pendingStocks[slot];
+      journalingQtys[i] = pendingNewQtys[slot];
+      journalingJoined[i] = pendingJoined[slot];
+    }
+    return count;
+  }
+
+  /**
+   * Appends to the journal the changes taken by {@link #takeUnjournaled}, then lets the other
+   * threads append; invoked outside of the lock.
+   */
+  private void appendTaken(int count) {
+    boolean done = false;
+    try {
+      int i = 0;
+      while (i < count) {
+        // Frame the changes of a batch as a single record
+        int size = 1;
+        while (i + size < count && journalingJoined[i + size]) {
+          size++;
+        }
+        if (size == 1) {
+          journal.append(journalId, journalingStocks[i], journalingQtys[i]);
+        } else {
+          journal.appendBatch(journalId, journalingStocks, journalingQtys, i, size);
+        }
+        i += size;
+      }
+      done = true;
+    } finally {
+      synchronized (this) {
+        if (done) {
+          journaledVersion += count;
+        }
+        journaling = false;
+        if (journalWaiters > 0) {
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Refuses a change if the executor cannot take its publication, with the fail-fast policy; the
+   * changes not yet published count as the notifications they will become. Invoked under the lock.
+   */
+  private void checkRoom() {
+    if (!executor.hasRoomFor((int) Math.min(unpublished() + 1, Integer.MAX_VALUE))) {
+      throw new RejectedExecutionException("Too many pending notifications for " + id);
+    }
+  }
+
+  /**
+   * Applies a batch of orders as a whole: either all the orders are valid and the resulting
+   * quantities are applied at once, or none is applied. Each order is handled as by "buy" (positive
+   * quantity) or "sell" (negative quantity), in sequence; then, the listener only receives the final
+   * quantity of each changed stock. If journaled, the changes are recorded as a single journal
+   * record, so that they are also recovered as a whole.
+   *
+   * @param stocks the stocks of the orders.
+   * @param qtys the signed quantities of the orders; 0 is not allowed.
+   * @param size the number of orders, from the start of the arrays.
+   * @throws IllegalArgumentException if any order is invalid, or if the changes are too many to be
+   *         journaled as a single record; nothing is applied.
+   */
+  public void applyBatch(String[] stocks, long[] qtys, int size) {
+    int[] stockIds = new int[size];
+    for (int i = 0; i < size; i++) {
+      stockIds[i] = stockIdOf(stocks[i]);
+    }
+    applyBatch(stockIds, qtys, size);
+  }
+
+  /**
+   * Applies a batch of orders on stocks identified by their ids, as {@link #applyBatch(String[],
+   * long[], int)} does.
+   */
+  public void applyBatch(int[] stockIds, long[] qtys, int size) {
+    // Validate all the orders upfront
+    String[] stocks = new String[size];
+    for (int i = 0; i < size; i++) {
+      stocks[i] = symbolOf(stockIds[i]);
+      if (qtys[i] == 0) {
+        log.warn("Cannot trade 0 " + stocks[i] + " for " + id);
+        throw new IllegalArgumentException("Cannot trade 0 " + stocks[i] + " for " + id);
+      }
+    }
+
+    int[] touched = new int[size];
+    long[] finalQtys = new long[size];
+    long changed = 0;
+    boolean publish = false;
+    int taken = 0;
+    synchronized (this) {
+      int touchedCount = settle(stockIds, qtys, size, touched, finalQtys, null);
+      int changes = 0;
+      for (int t = 0; t < touchedCount; t++) {
+        if (finalQtys[t] != quantities.get(touched[t])) {
+          changes++;
+        }
+      }
+
+      if (changes > 0) {
+        // Check the room before changing anything, so that no change goes unnotified; then tell
+        // about the adjusted orders, as they are applied
+        checkRoom();
+        if (journal != null && !journal.fitsBatch(journalId, touched, touchedCount)) {
+          log.warn("Batch too large to be journaled for " + id);
+          throw new IllegalArgumentException("Batch too large to be journaled for " + id);
+        }
+        settle(stockIds, qtys, size, touched, finalQtys, stocks);
+        for (int t = 0; t < touchedCount; t++) {
+          long oldQty = quantities.get(touched[t]);
+          if (finalQtys[t] != oldQty) {
+            changed = apply(touched[t], oldQty, finalQtys[t], changed != 0);
+          }
+        }
+        publish = claimPublish();
+        if (journal != null && !journaling) {
+          taken = takeUnjournaled();
+        }
+      } else {
+        // All the orders have been ignored
+        settle(stockIds, qtys, size, touched, finalQtys, stocks);
+      }
+    }
+
+    if (changed != 0) {
+      settleChanges(changed, taken, publish);
+    }
+  }
+
+  /**
+   * Works out the final quantity of each stock traded by a batch of orders, applied in sequence on
+   * the current contents, and returns the number of stocks, in order of first appearance; invoked
+   * under the lock.
+   *
+   * @param stocks the symbols of the orders, used to tell about the adjusted orders; null to be
+   *        quiet.
+   */
+  private int settle(int[] stockIds, long[] qtys, int size, int[] touched, long[] finalQtys,
+      String[] stocks) {
+    int touchedCount = 0;
+    for (int i = 0; i < size; i++) {
+      int t = 0;
+      while (t < touchedCount && touched[t] != stockIds[i]) {
+        t++;
+      }
+      if (t == touchedCount) {
+        touched[t] = stockIds[i];
+        finalQtys[t] = quantities.get(stockIds[i]);
+        touchedCount++;
+      }
+      if (stocks != null) {
+        warnAdjusted(stocks[i], finalQtys[t], qtys[i]);
+      }
+      finalQtys[t] = nextQty(finalQtys[t], qtys[i]);
+    }
+    return touchedCount;
+  }
+
+  /**
+   * Returns the quantity resulting from an order on a stock held in the provided quantity, or the
+   * same quantity if the order has to be ignored.
+   */
+  private static long nextQty(long oldQty, long qty) {
+    long newQty;
+    if (oldQty == 0) {
+      // If oldQty is 0 it means that we have not that stock on our portfolio
       if (qty <= 0) {
-        // We can't sell something we don't have, warn and return.
-        log.warn(id + "|No stock to sell: " + stock);
-        return;
+        // We can't sell something we don't have
+        return oldQty;
       }
 
       // The new quantity is equal to the bought value
@@ -122,74 +719,354 @@ public class Portfolio {
 
       // Overflow check; just in case
       if (qty > 0 && newQty <= qty) {
-        newQty = oldQty;
-        log.warn(id + "|Quantity overflow; order ignored: " + stock);
-        return;
+        return oldQty;
       }
     }
 
     if (newQty < 0) {
-      // We sold more than we had
-      log.warn(id + "|Not enough stock to sell: " + stock);
+      // We sold more than we had; we interpret this as "sell everything"
+      newQty = 0;
+    }
+    return newQty;
+  }
 
+  /**
+   * Warns if an order on a stock held in the provided quantity is ignored or reduced by
+   * {@link #nextQty}.
+   */
+  private void warnAdjusted(String stock, long oldQty, long qty) {
+    if (oldQty == 0) {
+      if (qty <= 0) {
+        log.warn(id + "|No stock to sell: " + stock);
+      }
+    } else if (qty > 0 && oldQty + qty <= qty) {
+      log.warn(id + "|Quantity overflow; order ignored: " + stock);
+    } else if (oldQty + qty < 0) {
       // We interpret this as "sell everything"
-      newQty = 0;
+      log.warn(id + "|Not enough stock to sell: " + stock);
     }
+  }
 
-    if (newQty == 0) {
-      // If we sold everything we remove the stock from the internal structure
-      quantities.remove(stock);
-    } else {
-      // Save the actual quantity in internal structure
-      quantities.put(stock, newQty);
+  /**
+   * Enqueues the publisher, once claimed through {@link #claimPublish()}; hence, a burst of changes
+   * only takes one task of the executor.
+   */
+  private void schedulePublish() {
+    try {
+      executor.executeAdmitted(publisher);
+    } catch (RuntimeException e) {
+      // Let the next change try again
+      synchronized (this) {
+        publishScheduled = false;
+      }
+      throw e;
     }
+  }
 
-    if (listener != null) {
-      // As we need an "effective final" variable, copy the value to be used in
-      // the lambda passed to the executor
-      long newVal = newQty;
+  /**
+   * Publishes the changes applied since the previous publication; invoked on the executor.
+   */
+  private void publish() {
+    synchronized (this) {
+      collect();
+    }
+    deliver();
+  }
 
-      // Call the update on the listener; in case the listener has just been
-      // detached, the listener should detect the case.
-      executor.execute(() -> listener.update(stock, newVal));
+  /**
+   * Takes the changes applied since the previous publication, to be delivered on the executor, and
+   * returns the current version; invoked on the executor, under the lock.
+   */
+  private long collect() {
+    // Any change applied from now on needs a further publication. Every task which publishes
+    // clears the flag, so that the changes are still published if the executor drops the pending
+    // publisher to make room for a further task
+    publishScheduled = false;
+
+    int count = (int) (version - publishedVersion);
+    if (publishingStocks.length < count) {
+      int size = Math.max(count, publishingStocks.length * 2);
+      publishingStocks = new int[size];
+      publishingOldQtys = new long[size];
+      publishingNewQtys = new long[size];
+    }
+    int mask = pendingStocks.length - 1;
+    for (int i = 0; i < count; i++) {
+      int slot = (int) (publishedVersion + 1 + i) & mask;
+      publishingStocks[i] = pendingStocks[slot];
+      publishingOldQtys[i] = pendingOldQtys[slot];
+      publishingNewQtys[i] = pendingNewQtys[slot];
     }
+    publishingFrom = publishedVersion;
+    publishingCount = count;
+    publishedVersion = version;
+    return version;
   }
 
+  /**
+   * Tells the observer and notifies the listener about the changes taken by {@link #collect()}, in
+   * the order of the versions; invoked on the executor, outside of the lock.
+   */
+  private void deliver() {
+    int count = publishingCount;
+    if (count == 0) {
+      return;
+    }
+    publishingCount = 0;
 
-  private boolean isValidStock(String stock) {
-    if (!stock.startsWith("item")) {
-      return false;
+    for (int i = 0; i < count; i++) {
+      record(publishingStocks[i], publishingOldQtys[i], publishingNewQtys[i],
+          publishingFrom + 1 + i);
+    }
+    if (conflate && count > 1) {
+      discardSuperseded(count);
+    }
+
+    PortfolioListener currentListener = listener;
+    if (currentListener == null) {
+      return;
+    }
+    for (int i = 0; i < count; i++) {
+      if (publishingStocks[i] == -1) {
+        // A newer quantity of the same stock follows
+        continue;
+      }
+
+      // The interned symbol is used, so that the listener always receives the same instance for
+      // the same stock
+      notify(currentListener, StockUniverse.symbol(publishingStocks[i]), publishingNewQtys[i],
+          publishingFrom + 1 + i);
     }
+  }
+
+  /**
+   * Clears, among the changes being published, the ones followed by a newer change of the same
+   * stock; invoked on the executor.
+   */
+  private void discardSuperseded(int count) {
+    // Keep the set at most half full
+    int capacity = Integer.highestOneBit(count - 1) << 2;
+    if (seenStocks == null || seenStocks.length < capacity) {
+      seenStocks = new int[capacity];
+    } else {
+      Arrays.fill(seenStocks, 0, capacity, 0);
+    }
+    int mask = capacity - 1;
 
-    String stockNumString = stock.substring(4);
+    // Scan from the newest change, so that the first one met for each stock is kept
+    for (int i = count - 1; i >= 0; i--) {
+      int key = publishingStocks[i] + 1;
+      int slot = (key * 0x9E3779B9) & mask;
+      while (seenStocks[slot] != 0 && seenStocks[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (seenStocks[slot] == key) {
+        publishingStocks[i] = -1;
+        conflated++;
+      } else {
+        seenStocks[slot] = key;
+      }
+    }
+  }
 
-    int stockNum;
+  /**
+   * Records a change in the log, and tells the observer about it; invoked on the executor.
+   */
+  private void record(int stockId, long oldQty, long newQty, long changeVersion) {
+    if (observer != null) {
+      try {
+        observer.positionChanged(id, stockId, oldQty, newQty);
+      } catch (RuntimeException e) {
+        log.warn("Exception caught while observing " + id, e);
+      }
+    }
+
+    if (logStocks != null) {
+      int slot = (int) (changeVersion % logStocks.length);
+      logStocks[slot] = stockId;
+      logQtys[slot] = newQty;
+    }
+  }
+
+  private void notify(PortfolioListener target, String stock, long qty, long version) {
+    // In case the listener has just been detached, the listener should detect the case
     try {
-      stockNum = Integer.parseInt(stockNumString);
-    } catch (NumberFormatException nfe) {
-      return false;
+      target.update(stock, qty, version);
+    } catch (RuntimeException e) {
+      log.warn("Exception caught while notifying " + id, e);
+    }
+  }
+
+  /**
+   * Sets the initial contents of a new portfolio, as a batch of changes to be journaled and
+   * published by {@link #flushPending()}. Nothing is waited for, hence it can be invoked while the
+   * portfolio is being registered.
+   */
+  void seed(int[] stockIds, long[] qtys, int size) {
+    synchronized (this) {
+      boolean joined = false;
+      for (int i = 0; i < size; i++) {
+        long oldQty = quantities.get(stockIds[i]);
+        if (qtys[i] != oldQty) {
+          apply(stockIds[i], oldQty, qtys[i], joined);
+          joined = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Journals and publishes the changes applied by {@link #seed}, unless already done, e.g. by a
+   * later change.
+   */
+  void flushPending() {
+    long target;
+    boolean publish;
+    synchronized (this) {
+      target = version;
+      publish = publishedVersion < version && claimPublish();
+    }
+    settleChanges(target, 0, publish);
+  }
+
+  /**
+   * Sets a quantity recovered from persistent storage, with no validation, no notification to the
+   * listener and no journaling. Meant to be used before the portfolio is made available; the
+   * observer is told, so that the recovered quantities are accounted for.
+   */
+  void restore(int stockId, long qty) {
+    long oldQty;
+    synchronized (this) {
+      oldQty = quantities.get(stockId);
+      quantities.set(stockId, qty);
+      snapshot = null;
     }
 
-    return stockNum > 0 && stockNum <= 30;
+    if (observer != null) {
+      observer.positionChanged(id, stockId, oldQty, qty);
+    }
   }
 
-  public synchronized void flushToListener(PortfolioListener listener) {
-    // Clone the actual status of the portfolio.
-    final HashMap<String, Long> currentStatus = new HashMap<>(quantities);
+  /**
+   * Copies the current contents into the provided arrays, which must be as large as the stock
+   * universe, and returns the number of held stocks. The contents are copied under the lock, hence
+   * they include every change already appended to the journal.
+   */
+  synchronized int copyHoldings(int[] stockIds, long[] qtys) {
+    int size = quantities.size();
+    for (int i = 0; i < size; i++) {
+      stockIds[i] = quantities.stockAt(i);
+      qtys[i] = quantities.quantityAt(i);
+    }
+    return size;
+  }
 
+  public void flushToListener(PortfolioListener listener) {
     // Create a new Runnable to be used as a task to pass the actual status to the listener
     // We add the task on the executor to pass to the listener the actual status
     executor.execute(() -> {
-      Set<Entry<String, Long>> entries = currentStatus.entrySet();
+      // Publish the pending changes first, so that the status follows the notifications already
+      // delivered and precedes the next ones; the immutable snapshot of the status is shared, so
+      // that nothing has to be cloned
+      PortfolioSnapshotMessage current;
+      synchronized (this) {
+        collect();
+        current = currentSnapshot();
+      }
+      deliver();
+
+      // Iterates through the snapshot to send the actual status to the client
+      for (int i = 0; i < current.keys.length; i++) {
+        listener.update(current.keys[i], current.qtys[i], current.version);
+      }
+    });
+  }
 
-      // Iterates through the HashMap representing the current status to send
-      // the snapshot to the client
-      for (Entry<String, Long> entry : entries) {
-        listener.update(entry.getKey(), entry.getValue().intValue());
+  public void flushSnapshot(PortfolioSnapshotListener listener) {
+    // We add the task on the executor to pass to the listener the actual status at once,
+    // in order with respect to the other notifications
+    executor.execute(() -> {
+      PortfolioSnapshotMessage current;
+      synchronized (this) {
+        collect();
+        current = currentSnapshot();
       }
+      deliver();
+      listener.snapshot(current);
     });
   }
 
+  /**
+   * Returns the immutable snapshot of the current contents, which is only built once per version;
+   * invoked under the lock.
+   */
+  private PortfolioSnapshotMessage currentSnapshot() {
+    if (snapshot == null) {
+      int size = quantities.size();
+      String[] stocks = new String[size];
+      long[] qtys = new long[size];
+      for (int i = 0; i < size; i++) {
+        stocks[i] = StockUniverse.symbol(quantities.stockAt(i));
+        qtys[i] = quantities.quantityAt(i);
+      }
+      snapshot = new PortfolioSnapshotMessage(id, stocks, qtys, version, false);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Passes to the listener the current quantity of each stock changed after the provided version,
+   * including the stocks no longer held, with a 0 quantity, in order with respect to the other
+   * notifications. If the log no longer covers the provided version, or if the version is newer
+   * than the current one, e.g. because of a restart, the whole contents are passed instead; the
+   * listener can tell the cases apart through {@link PortfolioSnapshotMessage#delta}.
+   */
+  public void flushChanges(long since, PortfolioSnapshotListener listener) {
+    executor.execute(() -> {
+      long current;
+      PortfolioSnapshotMessage whole = null;
+      synchronized (this) {
+        current = collect();
+        if (logStocks == null || since < 0 || since > current
+            || current - since > logStocks.length) {
+          whole = currentSnapshot();
+        }
+      }
+      deliver();
+      listener.snapshot(whole != null ? whole : changesSince(since, current));
+    });
+  }
+
+  /**
+   * Collects the changes after the provided version from the log; invoked on the executor.
+   */
+  private PortfolioSnapshotMessage changesSince(long since, long version) {
+    // Scan the log backwards, so that only the newest quantity of each stock is taken
+    int count = (int) (version - since);
+    int[] changedIds = new int[count];
+    long[] qtys = new long[count];
+    int size = 0;
+    for (long v = version; v > since; v--) {
+      int slot = (int) (v % logStocks.length);
+      int stockId = logStocks[slot];
+      int i = 0;
+      while (i < size && changedIds[i] != stockId) {
+        i++;
+      }
+      if (i == size) {
+        changedIds[size] = stockId;
+        qtys[size] = logQtys[slot];
+        size++;
+      }
+    }
+
+    String[] stocks = new String[size];
+    for (int i = 0; i < size; i++) {
+      stocks[i] = StockUniverse.symbol(changedIds[i]);
+    }
+    return new PortfolioSnapshotMessage(id, stocks, Arrays.copyOf(qtys, size), version, true);
+  }
+
   public void setListener(PortfolioListener newListener) {
     Objects.requireNonNull(newListener, "Please provide a valid listener");
 
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A binary snapshot of the contents of all the portfolios, along with the position of the journal
+ * (see {@link TradeJournal}) at which it was started. Upon startup, the snapshot is loaded and only
+ * the journal records from that position on need to be replayed.
+ *
+ * <p>
+ * The portfolios are stored in independent chunks, each one with its own checksum, so that they can
+ * be verified and loaded in parallel. File layout:
+ *
+ * <pre>
+ * header:  magic (int), version (int), journal position (long), stock count (unsigned short),
+ *          stock symbols (unsigned short length + UTF-8 bytes each)
+ * chunk:   length (int), portfolio count (int), CRC32 of the chunk content (int), content
+ * content: for each portfolio, id (unsigned short length + UTF-8 bytes), holdings count (unsigned
+ *          short), holdings (stock index in the header (unsigned short), quantity (long) each)
+ * end:     a chunk header with length 0
+ * </pre>
+ */
+final class PortfolioCheckpoint {
+
+  /**
+   * Receives the contents of a portfolio upon loading. The arrays are reused across calls and only
+   * the first <code>size</code> positions are meaningful.
+   */
+  @FunctionalInterface
+  interface Restorer {
+
+    void restore(String portfolioId, int[] stockIds, long[] qtys, int size);
+  }
+
+  private static final int MAGIC = 0x50464350; // "PFCP"
+
+  private static final int VERSION = 1;
+
+  private static final int PORTFOLIOS_PER_CHUNK = 4096;
+
+  private static final int CHUNK_HEADER_SIZE = 12;
+
+  private final long journalPosition;
+
+  /**
+   * Associates the stock indexes of the file with the ids of the current universe, or -1.
+   */
+  private final int[] stockIds;
+
+  private final MappedByteBuffer data;
+
+  /**
+   * The offsets of the chunks in the file.
+   */
+  private final List<Integer> chunks;
+
+  private PortfolioCheckpoint(long journalPosition, int[] stockIds, MappedByteBuffer data,
+      List<Integer> chunks) {
+    this.journalPosition = journalPosition;
+    this.stockIds = stockIds;
+    this.data = data;
+    this.chunks = chunks;
+  }
+
+  /**
+   * Writes the provided portfolios to the file, through a temporary file atomically moved in
+   * place. Each portfolio is copied under its own lock, so that trading can go on in the meantime;
+   * as a change is applied under that lock before being appended to the journal, each copy includes
+   * every change recorded before the provided position, which has to be taken before writing.
+   */
+  static void write(Path file, long journalPosition, Map<String, Portfolio> portfolios)
+      throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(journalPosition);
+      out.writeShort(StockUniverse.size());
+      for (int i = 0; i < StockUniverse.size(); i++) {
+        writeString(out, StockUniverse.symbol(i));
+      }
+
+      ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream(1 << 16);
+      DataOutputStream chunk = new DataOutputStream(chunkBytes);
+      int[] stocks = new int[StockUniverse.size()];
+      long[] qtys = new long[StockUniverse.size()];
+      int count = 0;
+      for (Map.Entry<String, Portfolio> entry : portfolios.entrySet()) {
+        int size = entry.getValue().copyHoldings(stocks, qtys);
+        writeString(chunk, entry.getKey());
+        chunk.writeShort(size);
+        for (int i = 0; i < size; i++) {
+          chunk.writeShort(stocks[i]);
+          chunk.writeLong(qtys[i]);
+        }
+
+        if (++count == PORTFOLIOS_PER_CHUNK) {
+          writeChunk(out, chunkBytes, count);
+          count = 0;
+        }
+      }
+      if (count > 0) {
+        writeChunk(out, chunkBytes, count);
+      }
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeInt(0);
+
+      out.flush();
+      fos.getFD().sync();
+    }
+
+    try {
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, ByteArrayOutputStream chunkBytes,
+      int count) throws IOException {
+    byte[] content = chunkBytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length);
+
+    out.writeInt(content.length);
+    out.writeInt(count);
+    out.writeInt((int) crc.getValue());
+    out.write(content);
+    chunkBytes.reset();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Opens and fully verifies a snapshot file; the chunks are verified in parallel.
+   *
+   * @throws IOException if the file cannot be read or is not a valid snapshot.
+   */
+  static PortfolioCheckpoint open(Path file) throws IOException {
+    MappedByteBuffer data;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Snapshot too large: " + channel.size() + " bytes");
+      }
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    try {
+      if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+        throw new IOException("Not a portfolio snapshot, or unsupported version");
+      }
+      long journalPosition = data.getLong();
+
+      int[] stockIds = new int[data.getShort() & 0xFFFF];
+      for (int i = 0; i < stockIds.length; i++) {
+        stockIds[i] = StockUniverse.idOf(readString(data));
+      }
+
+      List<Integer> chunks = new ArrayList<>();
+      while (true) {
+        int offset = data.position();
+        int length = data.getInt(offset);
+        if (length == 0) {
+          break;
+        }
+        if (length < 0 || length > data.limit() - offset - CHUNK_HEADER_SIZE) {
+          throw new IOException("Truncated snapshot");
+        }
+        chunks.add(offset);
+        data.position(offset + CHUNK_HEADER_SIZE + length);
+      }
+
+      boolean valid = chunks.parallelStream().allMatch(offset -> {
+        ByteBuffer content = content(data, offset);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue() == data.getInt(offset + 8);
+      });
+      if (!valid) {
+        throw new IOException("Corrupted snapshot");
+      }
+
+      return new PortfolioCheckpoint(journalPosition, stockIds, data, chunks);
+    } catch (RuntimeException e) {
+      // Out of bounds reads, due to a truncated file
+      throw new IOException("Truncated snapshot", e);
+    }
+  }
+
+  /**
+   * Returns the position of the journal at which the snapshot was started, or -1 if the
+   * portfolios were not journaled.
+   */
+  long journalPosition() {
+    return journalPosition;
+  }
+
+  /**
+   * Hands all the portfolios to the provided restorer, from multiple threads in parallel, and
+   * returns the number of portfolios.
+   */
+  int load(Restorer restorer) {
+    return chunks.parallelStream().mapToInt(offset -> {
+      ByteBuffer content = content(data, offset);
+      int count = data.getInt(offset + 4);
+      int[] stocks = new int[StockUniverse.size()];
+      long[] qtys = new long[StockUniverse.size()];
+
+      for (int p = 0; p < count; p++) {
+        String portfolioId = readString(content);
+        int holdings = content.getShort() & 0xFFFF;
+        int size = 0;
+        for (int h = 0; h < holdings; h++) {
+          int index = content.getShort() & 0xFFFF;
+          long qty = content.getLong();
+          int stockId = index < stockIds.length ? stockIds[index] : -1;
+          if (stockId != -1 && qty > 0) {
+            // Stocks no longer in the universe are dropped
+            stocks[size] = stockId;
+            qtys[size++] = qty;
+          }
+        }
+        restorer.restore(portfolioId, stocks, qtys, size);
+      }
+      return count;
+    }).sum();
+  }
+
+  /**
+   * Returns a view over the content of the chunk at the provided offset.
+   */
+  private static ByteBuffer content(ByteBuffer data, int offset) {
+    ByteBuffer content = data.duplicate();
+    content.position(offset + CHUNK_HEADER_SIZE);
+    content.limit(offset + CHUNK_HEADER_SIZE + data.getInt(offset));
+    return content.slice();
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
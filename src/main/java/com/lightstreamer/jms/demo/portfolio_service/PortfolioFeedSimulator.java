@@ -15,21 +15,34 @@
 
 package com.lightstreamer.jms.demo.portfolio_service;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.lightstreamer.jms.demo.portfolio_service.config.Configuration;
+import com.lightstreamer.jms.demo.portfolio_service.metrics.LatencyHistogram;
 
 /**
  * Simulates an external data feed that provides the contents of multiple stock portfolios.
  * 
  * <p>
- * Only 5 portfolios of names "portfolio1" to "portfolio5" are currently accepted. The managed
- * portfolios are initialized with random content. Each portfolio is initialized only when needed,
- * then it is kept permanently. The feed provides the clients with a single bean for each managed
- * portfolio, which can be used either to listen to the contents or to notify buy/sell orders.
+ * Only the portfolios of names "portfolio1" to "portfolioN" are accepted, where both the
+ * "portfolio" prefix and the N limit are configurable. The managed portfolios are initialized with
+ * random content. Each portfolio is initialized only when needed, then it is kept permanently. The
+ * feed provides the clients with a single bean for each managed portfolio, which can be used either
+ * to listen to the contents or to notify buy/sell orders.
  */
 public class PortfolioFeedSimulator {
 
@@ -38,132 +51,481 @@ public class PortfolioFeedSimulator {
    */
   private final Logger log = LoggerFactory.getLogger(PortfolioFeedSimulator.class);
 
+  /**
+   * The max number of portfolios for which room is reserved upfront in the portfolios map.
+   */
+  private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
   /**
    * Map of portfolios.
    */
-  private final ConcurrentHashMap<String, Portfolio> portfolios = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Portfolio> portfolios;
+
+  /**
+   * Provides the threads on which the portfolios dispatch the calls to their listeners.
+   */
+  private final ExecutionBackend dispatcher;
+
+  /**
+   * The prefix of the accepted portfolio ids.
+   */
+  private final String portfolioIdPrefix;
+
+  /**
+   * The max number of accepted portfolios.
+   */
+  private final int portfolioMaxNum;
+
+  /**
+   * Records the latency of the listener calls; null if not required.
+   */
+  private final LatencyHistogram dispatchLatency;
+
+  /**
+   * The max number of pending listener calls of each portfolio; 0 means unbounded.
+   */
+  private final int dispatchQueueCapacity;
+
+  /**
+   * What to do when the listener calls of a portfolio reach the capacity.
+   */
+  private final OverflowPolicy dispatchQueuePolicy;
+
+  /**
+   * Records the changes of all the portfolios; null if not configured.
+   */
+  private final TradeJournal journal;
+
+  /**
+   * Issues orders on the portfolios, once started; null if not configured.
+   */
+  private final TradeFlowGenerator tradeFlow;
+
+  /**
+   * Told about every change of the portfolios; null if not required.
+   */
+  private final PositionObserver observer;
+
+  /**
+   * The number of latest changes logged by each portfolio.
+   */
+  private final int changeLogSize;
+
+  public PortfolioFeedSimulator(Configuration config) {
+    this(config, null);
+  }
+
+  public PortfolioFeedSimulator(Configuration config, LatencyHistogram dispatchLatency) {
+    this(config, dispatchLatency, null);
+  }
+
+  /**
+   * Creates the feed as above, with portfolios which tell the provided observer, if not null,
+   * about every change, including the quantities recovered upon startup.
+   */
+  public PortfolioFeedSimulator(Configuration config, LatencyHistogram dispatchLatency,
+      PositionObserver observer) {
+    this.dispatchLatency = dispatchLatency;
+    this.observer = observer;
+
+    // Set up the stock universe before anything gets sized on it
+    if (config.stockFile != null) {
+      StockUniverse.load(Paths.get(config.stockFile));
+    } else {
+      StockUniverse.configure(config.stockNum);
+    }
+
+    portfolioIdPrefix = config.portfolioIdPrefix;
+    portfolioMaxNum = config.portfolioMaxNum;
+    portfolios = new ConcurrentHashMap<>(Math.min(portfolioMaxNum, MAX_INITIAL_CAPACITY));
+    log.info("Accepting portfolios from {}1 to {}{}", portfolioIdPrefix, portfolioIdPrefix,
+        portfolioMaxNum);
+
+    // With the pipeline, the notifications are handed to the publish stage by the apply stage
+    // itself, with no further hand-off
+    String backend = config.pipelineRingSize > 0 ? "inline" : config.executionBackend;
+    dispatcher = ExecutionBackend.forName(backend, config.dispatchThreads, "Portfolio-Dispatcher");
+    log.info("Dispatching portfolio updates on {}", dispatcher);
+
+    changeLogSize = config.changeLogSize;
+    dispatchQueueCapacity = config.dispatchQueueCapacity;
+    dispatchQueuePolicy = OverflowPolicy.forName(config.dispatchQueuePolicy);
+    if (dispatchQueueCapacity > 0) {
+      log.info("Bounding the pending updates of each portfolio to {}, with policy [{}]",
+          dispatchQueueCapacity, dispatchQueuePolicy);
+    } else if (dispatchQueuePolicy == OverflowPolicy.CONFLATE) {
+      log.info("Conflating the pending updates of each portfolio");
+    }
+
+    // Recover the portfolios from the latest snapshot and from the journal, if configured, before
+    // accepting any change
+    Path checkpointFile = config.checkpointFile != null ? Paths.get(config.checkpointFile) : null;
+    PortfolioCheckpoint checkpoint = checkpointFile != null ? openCheckpoint(checkpointFile) : null;
+
+    Map<String, Replayed> journaled = new HashMap<>();
+    if (config.journalFile != null) {
+      // Only the records following the snapshot need to be replayed
+      long from = checkpoint != null ? Math.max(checkpoint.journalPosition(), 0) : 0;
+      journal = openJournal(config, from, journaled);
+    } else {
+      journal = null;
+    }
+
+    if (checkpoint != null) {
+      loadCheckpoint(checkpoint);
+    }
+    applyJournaled(journaled);
+
+    if (checkpointFile != null) {
+      scheduleCheckpoints(checkpointFile, config.checkpointInterval);
+    }
+
+    tradeFlow = config.tradeRate > 0 ? new TradeFlowGenerator(config, this::getPortfolio) : null;
+  }
+
+  /**
+   * Starts issuing orders on the portfolios, if the trade flow is configured; meant to be invoked
+   * once the listeners are attached.
+   */
+  public void startTrading() {
+    if (tradeFlow != null) {
+      tradeFlow.start();
+    }
+  }
+
+  /**
+   * Returns the number of orders issued by the trade flow so far.
+   */
+  public long generatedTrades() {
+    return tradeFlow != null ? tradeFlow.trades() : 0;
+  }
+
+  /**
+   * Returns the number of orders of the trade flow refused because of the overload of the
+   * portfolios.
+   */
+  public long generatedTradeRejections() {
+    return tradeFlow != null ? tradeFlow.rejections() : 0;
+  }
+
+  /**
+   * Opens the snapshot, if available and valid.
+   */
+  private PortfolioCheckpoint openCheckpoint(Path file) {
+    if (!Files.exists(file)) {
+      log.info("No snapshot found in [{}]", file);
+      return null;
+    }
+
+    try {
+      return PortfolioCheckpoint.open(file);
+    } catch (IOException e) {
+      log.warn("Ignoring the invalid snapshot [{}]", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Recreates the portfolios stored in the snapshot, in parallel.
+   */
+  private void loadCheckpoint(PortfolioCheckpoint checkpoint) {
+    long start = System.nanoTime();
+    int loaded = checkpoint.load((portfolioId, stockIds, qtys, size) -> {
+      if (!checkPortfolio(portfolioId)) {
+        // The configuration may have changed since the snapshot was written
+        return;
+      }
+
+      Portfolio portfolio = createPortfolio(portfolioId);
+      for (int i = 0; i < size; i++) {
+        portfolio.restore(stockIds[i], qtys[i]);
+      }
+      portfolios.put(portfolioId, portfolio);
+    });
+    log.info("Loaded {} portfolios out of {} from the snapshot in {} ms", portfolios.size(), loaded,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+  }
+
+  /**
+   * Opens the journal, collecting the last quantity it records for each stock of each portfolio.
+   */
+  private TradeJournal openJournal(Configuration config, long from,
+      Map<String, Replayed> journaled) {
+    int[] skipped = new int[1];
+    TradeJournal journal = TradeJournal.open(Paths.get(config.journalFile), from,
+        config.journalSyncInterval, config.journalGroupCommit, (portfolioId, stock, qty) -> {
+          int stockId = StockUniverse.idOf(stock);
+          if (stockId == -1 || qty < 0 || !checkPortfolio(portfolioId)) {
+            // The configuration may have changed since the record was written
+            skipped[0]++;
+            return;
+          }
+
+          // Later records supersede the earlier ones
+          journaled.computeIfAbsent(portfolioId, id -> new Replayed()).put(stockId, qty);
+        });
+    if (skipped[0] > 0) {
+      log.warn("Skipped {} journal records not matching the configured portfolios and stocks",
+          skipped[0]);
+    }
+    return journal;
+  }
+
+  /**
+   * Applies the quantities replayed from the journal on top of the portfolios loaded from the
+   * snapshot, if any.
+   */
+  private void applyJournaled(Map<String, Replayed> journaled) {
+    journaled.forEach((portfolioId, replayed) -> {
+      Portfolio portfolio = portfolios.computeIfAbsent(portfolioId,
+          this::createPortfolio);
+      for (int i = 0; i < replayed.size; i++) {
+        portfolio.restore(replayed.stockIds[i], replayed.qtys[i]);
+      }
+    });
+    if (!journaled.isEmpty()) {
+      log.info("Recovered {} portfolios from the journal", journaled.size());
+    }
+  }
+
+  /**
+   * Writes a snapshot of all the portfolios periodically, in the background.
+   */
+  private void scheduleCheckpoints(Path file, long intervalMillis) {
+    ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("Portfolio-Checkpointer", true));
+    checkpointer.scheduleWithFixedDelay(() -> checkpoint(file), intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+    log.info("Writing a snapshot to [{}] every {} ms", file, intervalMillis);
+  }
+
+  /**
+   * Writes a snapshot of all the portfolios, while trading goes on.
+   */
+  private void checkpoint(Path file) {
+    try {
+      long start = System.nanoTime();
+
+      // Any change recorded before this position is seen by the snapshot, as the changes are
+      // applied under the lock of their portfolio before being recorded, and each portfolio is
+      // then copied under the same lock; the changes recorded later will be replayed on top of
+      // the snapshot, which is harmless even if they are already seen. The journal is synced, so
+      // that the replay can always start from here
+      long position = -1;
+      if (journal != null) {
+        position = journal.position();
+        journal.sync();
+      }
+
+      PortfolioCheckpoint.write(file, position, portfolios);
+      log.info("Snapshot of {} portfolios written in {} ms", portfolios.size(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } catch (IOException | RuntimeException e) {
+      log.error("Error while writing the snapshot [{}]", file, e);
+    }
+  }
 
   public Portfolio getPortfolio(String portfolioId) {
-    // Check the portfolioId to see if it's a valid one
-    if (!checkPortfolio(portfolioId)) {
-      log.warn("Wrong portfolio ID: " + portfolioId);
+    if (portfolioId == null) {
+      log.warn("Missing portfolio ID");
       return null;
     }
 
-    // Get the portfolio by id from the portfolios map
+    // Get the portfolio by id from the portfolios map; if available, we know it's a valid one
     Portfolio portfolio = portfolios.get(portfolioId);
     if (portfolio != null) {
-      // If the portfolio is already available return it
       return portfolio;
+    }
 
+    // Check the portfolioId to see if it's a valid one
+    if (!checkPortfolio(portfolioId)) {
+      log.warn("Wrong portfolio ID: " + portfolioId);
+      return null;
+    }
+
+    // If the portfolio is not yet available we will create it. The creation is atomic with
+    // respect to the other threads that need the same portfolio, without blocking the threads
+    // that need a different one. The initial contents are journaled and published only once the
+    // portfolio is registered, so that the journal is never waited for inside the map
+    portfolio = portfolios.computeIfAbsent(portfolioId, this::newPortfolio);
+    portfolio.flushPending();
+    return portfolio;
+  }
+
+  /**
+   * Returns the number of listener calls enqueued and not yet completed, over all the portfolios.
+   */
+  public long pendingNotifications() {
+    long pending = 0;
+    for (Portfolio portfolio : portfolios.values()) {
+      pending += portfolio.pendingNotifications();
     }
+    return pending;
+  }
 
-    // If the portfolio is not yet available we will create it.
-    // We have to synchronize to avoid conflict with other threads that
-    // need to create the same portfolio.
-    synchronized (this) {
+  /**
+   * Returns the max number of listener calls ever enqueued at the same time for a single portfolio.
+   */
+  public long maxPendingNotifications() {
+    long max = 0;
+    for (Portfolio portfolio : portfolios.values()) {
+      max = Math.max(max, portfolio.maxPendingNotifications());
+    }
+    return max;
+  }
 
-      // Check again if the portfolio is available in case another thread created it
-      // while we were waiting for the lock
-      portfolio = portfolios.get(portfolioId);
-      if (portfolio == null) {
+  /**
+   * Returns the number of listener calls discarded because of a full queue, over all the
+   * portfolios.
+   */
+  public long droppedNotifications() {
+    long dropped = 0;
+    for (Portfolio portfolio : portfolios.values()) {
+      dropped += portfolio.droppedNotifications();
+    }
+    return dropped;
+  }
 
-        // If no such portfolio exists we create a new portfolio
-        portfolio = new Portfolio(portfolioId);
+  /**
+   * Returns the number of listener calls merged into pending ones, over all the portfolios.
+   */
+  public long conflatedNotifications() {
+    long conflated = 0;
+    for (Portfolio portfolio : portfolios.values()) {
+      conflated += portfolio.conflatedNotifications();
+    }
+    return conflated;
+  }
 
-        // We need to generate an actual status of the portfolio to avoid starting with
-        // an empty one. Some random quantity will do the trick.
-        addRandomQuantities(portfolio);
+  /**
+   * Creates an empty portfolio, with its own lane on the dispatcher.
+   */
+  private Portfolio createPortfolio(String portfolioId) {
+    SerialExecutor lane = new SerialExecutor(dispatcher.newLaneExecutor(), dispatchLatency,
+        dispatchQueueCapacity, dispatchQueuePolicy);
+    return new Portfolio(portfolioId, lane, journal,
+        dispatchQueuePolicy == OverflowPolicy.CONFLATE, observer, changeLogSize);
+  }
 
-        // Add the new portfolio to the list of available portfolios
-        portfolios.put(portfolioId, portfolio);
+  private Portfolio newPortfolio(String portfolioId) {
+    // If no such portfolio exists we create a new portfolio
+    Portfolio portfolio = createPortfolio(portfolioId);
 
-        log.info(portfolioId + " created");
-      }
+    // We need to generate an actual status of the portfolio to avoid starting with
+    // an empty one. Some random quantity will do the trick. If journaled, the initial quantities
+    // are recorded as well, once the portfolio is registered, so that they are recovered upon
+    // restart.
+    addRandomQuantities(portfolio);
 
-      // Return the portfolio
-      return portfolio;
-    }
+    log.info(portfolioId + " created");
+    return portfolio;
   }
 
   /**
-   * Creates a random initial status for the portfolio.
+   * Creates a random initial status for the portfolio: 6 to 8 distinct stocks, drawn from the ids 0
+   * to {@link StockUniverse#size()} - 1, or all of them if the universe is smaller.
    */
   private static void addRandomQuantities(Portfolio portfolio) {
     Random generator = new Random();
 
-    boolean[] used = new boolean[30];
-    for (int i = 0; i < 30; i++) {
-      used[i] = false;
-    }
+    int universeSize = StockUniverse.size();
+    boolean[] used = new boolean[universeSize];
 
-    // We start with 6-8 stocks
-    int stocks = 6 + generator.nextInt(3);
+    // We start with 6-8 stocks, or less if the universe is smaller
+    int stocks = Math.min(6 + generator.nextInt(3), universeSize);
+    int[] stockIds = new int[stocks];
+    long[] qtys = new long[stocks];
 
-    for (int i = 1; i <= stocks; i++) {
+    for (int i = 0; i < stocks; i++) {
       int stockN;
 
       do {
-        // We need a stock number between 0 and 29
-        stockN = generator.nextInt(30);
+        // We need a stock id in the universe
+        stockN = generator.nextInt(universeSize);
       } while (used[stockN]); // We need a stockId that's not been already used for this portfolio
 
       // Sign that we've used this stock number
       used[stockN] = true;
 
-      // The stock id will be itemN where N is a number between 1 and 30
-      String item = "item" + (stockN + 1);
-
       // The initial quantity will be between 100 and 2500
       int qty = generator.nextInt(25) + 1;
       qty *= 100;
 
-      // Use the buy method to initialize the status
-      portfolio.buy(item, qty);
+      stockIds[i] = stockN;
+      qtys[i] = qty;
     }
+
+    // Initialize the status at once, with no need to wait for the journal
+    portfolio.seed(stockIds, qtys, stocks);
   }
 
   /**
-   * Performs a simple hard-coded portfolio id validation; we accept portfolioN where N is a number
-   * between 1 and 10.
+   * Performs the portfolio id validation; we accept the configured prefix followed by a number N
+   * between 1 and the configured limit. The id is scanned in place, without any substring or
+   * parsing allocation.
    */
-  private static boolean checkPortfolio(String portfolio) {
-    if (portfolio.indexOf("portfolio") != 0)
+  private boolean checkPortfolio(String portfolio) {
+    if (!portfolio.startsWith(portfolioIdPrefix))
       return false;
 
-    int stNum;
-    try {
-      stNum = Integer.parseInt(portfolio.substring(9));
+    int start = portfolioIdPrefix.length();
+    int len = portfolio.length();
 
-    } catch (NumberFormatException e) {
+    // No leading zeros, and no more digits than an int can hold
+    if (len == start || len - start > 10 || portfolio.charAt(start) == '0')
       return false;
+
+    long stNum = 0;
+    for (int i = start; i < len; i++) {
+      char c = portfolio.charAt(i);
+      if (c < '0' || c > '9')
+        return false;
+      stNum = stNum * 10 + (c - '0');
     }
 
-    if (stNum <= 0 || stNum > 10)
+    if (stNum > portfolioMaxNum)
       return false;
 
     return true;
   }
 
   /**
-   * Performs a simple hard-coded stock id validation; We accept itemN where N is a number between 1
-   * and 30. NOTE that also the Portfolio class is aware about the way the stock id are composed.
+   * Performs the stock validation, against the configured universe: a stock is valid if it is
+   * among the {@link StockUniverse#size()} symbols of {@link StockUniverse}.
    */
   public static boolean checkStock(String stock) {
-    if (stock.indexOf("item") != 0)
-      return false;
+    return StockUniverse.idOf(stock) != -1;
+  }
 
-    int stNum;
-    try {
-      stNum = Integer.parseInt(stock.substring(4));
+  /**
+   * The last quantity replayed from the journal for each stock of a portfolio, including the 0
+   * quantities; only the stocks actually recorded take room, sorted by id.
+   */
+  private static final class Replayed {
 
-    } catch (NumberFormatException e) {
-      return false;
-    }
+    int[] stockIds = new int[4];
 
-    if (stNum <= 0 || stNum > 30)
-      return false;
+    long[] qtys = new long[4];
 
-    return true;
+    int size;
+
+    void put(int stockId, long qty) {
+      int pos = Arrays.binarySearch(stockIds, 0, size, stockId);
+      if (pos >= 0) {
+        qtys[pos] = qty;
+        return;
+      }
+
+      if (size == stockIds.length) {
+        stockIds = Arrays.copyOf(stockIds, size * 2);
+        qtys = Arrays.copyOf(qtys, size * 2);
+      }
+      int insertAt = -pos - 1;
+      System.arraycopy(stockIds, insertAt, stockIds, insertAt + 1, size - insertAt);
+      System.arraycopy(qtys, insertAt, qtys, insertAt + 1, size - insertAt);
+      stockIds[insertAt] = stockId;
+      qtys[insertAt] = qty;
+      size++;
+    }
   }
 }
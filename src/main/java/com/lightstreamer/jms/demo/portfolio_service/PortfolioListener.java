@@ -30,7 +30,8 @@ public interface PortfolioListener {
      * Called on each new update on the state of the portfolio.
      * If oldQty is 0 means that the stock wasn't on the portfolio before;
      * if qty is 0 means that the stock was completely sold from the portfolio.
+     * The version is the one of the portfolio as of this quantity.
      */
-  public void update(String stock, long qty);
+  public void update(String stock, long qty, long version);
 
 }
\ No newline at end of file
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.function.Consumer;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessage;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioSnapshotMessage;
+
+/**
+ * Processes the requests through three stages, connected by {@link RingBuffer}s of pre-allocated
+ * slots:
+ *
+ * <ul>
+ * <li>decode: the JMS delivery thread decodes each request in place into a slot of the request
+ * ring;</li>
+ * <li>apply: a single thread applies the requests to the portfolios; the portfolios are expected to
+ * notify their listeners inline, so that the updates and the responses are written, in order, into
+ * the slots of the outbound ring;</li>
+ * <li>publish: a single thread sends the updates and the responses, and it is told when a batch of
+ * them ends, e.g. to commit a transaction.</li>
+ * </ul>
+ *
+ * <p>
+ * A single thread per stage keeps the portfolios and the publishing sessions uncontended, and
+ * preserves the order of the requests and of the updates of each portfolio.
+ */
+final class PortfolioPipeline {
+
+  /**
+   * An update or a response to be sent by the publish stage. Only the fields of its kind are set.
+   */
+  static final class Outbound {
+
+    // The update of a stock
+    String portfolioId;
+
+    String stock;
+
+    long qty;
+
+    long version;
+
+    // The response to a status request, either a single stock or a snapshot
+    PortfolioMessage response;
+
+    PortfolioSnapshotMessage snapshot;
+
+    Destination replyTo;
+
+    String correlationId;
+
+    void clear() {
+      portfolioId = null;
+      stock = null;
+      qty = 0;
+      version = 0;
+      response = null;
+      snapshot = null;
+      replyTo = null;
+      correlationId = null;
+    }
+  }
+
+  private static Logger log = LoggerFactory.getLogger(PortfolioPipeline.class);
+
+  private final RingBuffer<PortfolioRequest> requests;
+
+  private final RingBuffer<Outbound> outbound;
+
+  /**
+   * Creates and starts the apply and publish stages.
+   *
+   * @param ringSize the number of slots of each ring; a power of 2.
+   * @param applier processes a request on the apply stage; the request must not be retained.
+   * @param publisher sends an update or a response on the publish stage; the event must not be
+   *        retained.
+   */
+  PortfolioPipeline(int ringSize, Consumer<PortfolioRequest> applier,
+      RingBuffer.EventHandler<Outbound> publisher) {
+    requests = new RingBuffer<>(ringSize, PortfolioRequest::new);
+    outbound = new RingBuffer<>(ringSize, Outbound::new);
+
+    requests.start("Portfolio-Apply", (request, endOfBatch) -> {
+      try {
+        applier.accept(request);
+      } finally {
+        request.clear();
+      }
+    });
+    outbound.start("Portfolio-Publish", (event, endOfBatch) -> {
+      try {
+        publisher.onEvent(event, endOfBatch);
+      } finally {
+        event.clear();
+      }
+    });
+    log.info("Processing requests through a pipeline with rings of {} slots", ringSize);
+  }
+
+  /**
+   * Decodes a request into the request ring; invoked on the JMS delivery thread. A request which
+   * cannot be decoded is handed over incomplete, so that the apply stage can account for it.
+   */
+  void submit(MapMessage message) {
+    long sequence = requests.next();
+    PortfolioRequest request = requests.get(sequence);
+    try {
+      request.decode(message);
+    } catch (JMSException e) {
+      log.warn("Portfolio: JMSException", e);
+      request.clear();
+    } finally {
+      requests.publish(sequence);
+    }
+  }
+
+  /**
+   * Hands the update of a stock over to the publish stage.
+   */
+  void update(String portfolioId, String stock, long qty, long version) {
+    long sequence = outbound.next();
+    Outbound event = outbound.get(sequence);
+    event.portfolioId = portfolioId;
+    event.stock = stock;
+    event.qty = qty;
+    event.version = version;
+    outbound.publish(sequence);
+  }
+
+  /**
+   * Hands a response over to the publish stage.
+   */
+  void respond(PortfolioMessage response, Destination replyTo, String correlationId) {
+    long sequence = outbound.next();
+    Outbound event = outbound.get(sequence);
+    event.response = response;
+    event.replyTo = replyTo;
+    event.correlationId = correlationId;
+    outbound.publish(sequence);
+  }
+
+  /**
+   * Hands a snapshot response over to the publish stage.
+   */
+  void respond(PortfolioSnapshotMessage snapshot, Destination replyTo, String correlationId) {
+    long sequence = outbound.next();
+    Outbound event = outbound.get(sequence);
+    event.snapshot = snapshot;
+    event.replyTo = replyTo;
+    event.correlationId = correlationId;
+    outbound.publish(sequence);
+  }
+
+  /**
+   * Returns the number of requests decoded and not yet applied.
+   */
+  long pendingRequests() {
+    return requests.depth();
+  }
+
+  /**
+   * Returns the max number of requests ever found pending by the apply stage.
+   */
+  long maxPendingRequests() {
+    return requests.maxDepth();
+  }
+
+  /**
+   * Returns the number of updates and responses not yet sent.
+   */
+  long pendingOutbound() {
+    return outbound.depth();
+  }
+
+  /**
+   * Returns the max number of updates and responses ever found pending by the publish stage.
+   */
+  long maxPendingOutbound() {
+    return outbound.maxDepth();
+  }
+}
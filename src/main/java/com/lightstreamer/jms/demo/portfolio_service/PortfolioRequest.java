@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+
+/**
+ * A request received on the portfolio queue, fully decoded from the JMS message, so that it can be
+ * processed on a thread other than the JMS delivery one. An instance can be reused for a new
+ * request, as the slots of the {@link PortfolioPipeline} rings do; in that case, it must not be
+ * retained after its processing.
+ */
+final class PortfolioRequest {
+
+  // The System.nanoTime() reading taken upon reception, before decoding
+  long receivedAt;
+
+  String op;
+
+  String portfolioId;
+
+  // The stock; null if not carried by the request
+  String stock;
+
+  // The id of the stock, interned upon decoding (see StockUniverse); -1 if missing or unknown
+  int stockId = -1;
+
+  // The quantity; 0 if not carried by the request
+  long qty;
+
+  // Whether a status request asks for the whole portfolio in a single reply
+  boolean snapshot;
+
+  // The version since which a status request asks for the changes only; -1 if not carried
+  long since;
+
+  // Where to send the responses
+  Destination replyTo;
+
+  String correlationId;
+
+  // The orders of a batch request, as "<key>.<index>" entries: the number of orders, then their
+  // operation, portfolio (defaulting to the one of the request), stock and quantity. The arrays are
+  // reused across decodes, hence they may be longer than the number of orders
+  int orderCount;
+
+  String[] orderOps = new String[0];
+
+  String[] orderPortfolios = new String[0];
+
+  String[] orderStocks = new String[0];
+
+  int[] orderStockIds = new int[0];
+
+  long[] orderQtys = new long[0];
+
+  PortfolioRequest() {
+  }
+
+  PortfolioRequest(MapMessage message) throws JMSException {
+    decode(message);
+  }
+
+  /**
+   * Replaces the contents with the ones of the provided message.
+   */
+  void decode(MapMessage message) throws JMSException {
+    receivedAt = System.nanoTime();
+    clear();
+    op = message.getString("request");
+    portfolioId = message.getString("portfolio");
+    stock = message.getString("stock");
+    stockId = StockUniverse.idOf(stock);
+    qty = message.itemExists("quantity") ? message.getLong("quantity") : 0;
+    snapshot = message.itemExists("snapshot") && message.getBoolean("snapshot");
+    since = message.itemExists("since") ? message.getLong("since") : -1;
+    replyTo = message.getJMSReplyTo();
+    correlationId = message.getJMSCorrelationID();
+
+    if (message.itemExists("orders")) {
+      int count = message.getInt("orders");
+      if (count < 0) {
+        throw new JMSException("Negative number of orders: " + count);
+      }
+      if (count > 0 && !message.itemExists("request." + (count - 1))) {
+        // Size the arrays after the orders actually carried, not after the declared number
+        throw new JMSException("Number of orders not matching the message: " + count);
+      }
+      if (count > orderOps.length) {
+        orderOps = new String[count];
+        orderPortfolios = new String[count];
+        orderStocks = new String[count];
+        orderStockIds = new int[count];
+        orderQtys = new long[count];
+      }
+      for (int i = 0; i < count; i++) {
+        orderOps[i] = message.getString("request." + i);
+        String orderPortfolio = message.getString("portfolio." + i);
+        orderPortfolios[i] = orderPortfolio != null ? orderPortfolio : portfolioId;
+        orderStocks[i] = message.getString("stock." + i);
+        orderStockIds[i] = StockUniverse.idOf(orderStocks[i]);
+        orderQtys[i] = message.itemExists("quantity." + i) ? message.getLong("quantity." + i) : 0;
+      }
+      orderCount = count;
+    }
+  }
+
+  /**
+   * Clears the contents, leaving the request incomplete.
+   */
+  void clear() {
+    op = null;
+    portfolioId = null;
+    stock = null;
+    stockId = -1;
+    qty = 0;
+    snapshot = false;
+    since = -1;
+    replyTo = null;
+    correlationId = null;
+    orderCount = 0;
+  }
+}
@@ -15,8 +15,17 @@
 
 package com.lightstreamer.jms.demo.portfolio_service;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
@@ -32,6 +41,10 @@ import org.slf4j.LoggerFactory;
 
 import com.lightstreamer.jms.demo.portfolio_service.config.Configuration;
 import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessage;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessageCodec;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioSnapshotMessage;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioValuationMessage;
+import com.lightstreamer.jms.demo.portfolio_service.metrics.ServiceMetrics;
 
 /**
  * @author Gialuca Finocchiaro
@@ -45,6 +58,16 @@ public class PortfolioService implements MessageListener {
 
   private static final String SELL_REQUEST = "SELL";
 
+  private static final String BATCH_REQUEST = "BATCH";
+
+  private static final String AGGREGATE_REQUEST = "GET_AGGREGATE_POSITIONS";
+
+  /**
+   * The number of request lanes for each request thread; requests are spread on the lanes by
+   * portfolio id.
+   */
+  private static final int LANES_PER_REQUEST_THREAD = 16;
+
   private static Logger log = LoggerFactory.getLogger(PortfolioService.class);
 
   /**
@@ -57,21 +80,125 @@ public class PortfolioService implements MessageListener {
    */
   private final TopicSender portfolioTopicSender;
 
+  /**
+   * The total positions of the stocks over all the portfolios.
+   */
+  private final AggregatePositions aggregates = new AggregatePositions();
+
+  /**
+   * Publishes the total positions of the stocks; null if disabled.
+   */
+  private final TopicSender aggregateTopicSender;
+
+  /**
+   * The interval at which the changed total positions are published.
+   */
+  private final long aggregateInterval;
+
+  /**
+   * Keeps the values of the portfolios up to date; null if disabled.
+   */
+  private final ValuationEngine valuation;
+
+  /**
+   * Publishes the values of the portfolios; null if disabled.
+   */
+  private final TopicSender valuationTopicSender;
+
+  /**
+   * Conflates the updates before they get published on the JMS topic; null if disabled.
+   */
+  private final UpdateConflater conflater;
+
   /**
    * This object handles communications with specific JMS clients answering direct requests
    */
   private final Responder portfolioCurrentStatus;
 
+  /**
+   * The lanes on which the requests are processed, each one in FIFO order; null if the requests are
+   * processed on the JMS delivery thread.
+   */
+  private final SerialExecutor[] requestLanes;
+
+  /**
+   * The staged engine through which the requests are processed and the updates published; null if
+   * disabled.
+   */
+  private final PortfolioPipeline pipeline;
+
+  /**
+   * The latencies and the counters of the hot paths.
+   */
+  private final ServiceMetrics metrics;
+
   /**
    * The number of portfolios to handle.
    */
   private final int portfolioNum;
 
+  /**
+   * The prefix of the portfolio ids.
+   */
+  private final String portfolioIdPrefix;
+
+  /**
+   * The max number of messages sent in a single transaction; 0 if not transacted.
+   */
+  private final int publishBatchSize;
+
   public PortfolioService(Configuration config) {
     this.portfolioNum = config.portfolioNum;
+    this.portfolioIdPrefix = config.portfolioIdPrefix;
+    this.publishBatchSize = config.publishBatchSize;
+    this.aggregateInterval = config.aggregateInterval;
+
+    // Prepare the instrumentation, exposed through JMX and, if configured, on the log
+    metrics = new ServiceMetrics(config.metricsLogInterval);
+
+    // Value the portfolios as they change, if configured; the values are published only once the
+    // engine is started, hence after the sender below is created
+    if (config.valuationTopicName != null) {
+      valuation = new ValuationEngine(
+          PriceSource.forName(config.priceSource, config.priceInterval),
+          config.valuationInterval, this::publishValuation);
+    } else {
+      valuation = null;
+    }
 
-    // "Bind" to the feed simulator
-    feed = new PortfolioFeedSimulator();
+    // "Bind" to the feed simulator, keeping the total positions, and the values if configured, up to
+    // date on every change
+    PositionObserver observer = valuation != null ? aggregates.andThen(valuation) : aggregates;
+    feed = new PortfolioFeedSimulator(config, metrics.dispatchLatency, observer);
+    metrics.setDispatchQueueGauges(feed::pendingNotifications, feed::maxPendingNotifications);
+    metrics.setDispatchOverflowGauges(feed::droppedNotifications, feed::conflatedNotifications);
+    metrics.setTradeFlowGauges(feed::generatedTrades, feed::generatedTradeRejections);
+
+    if (config.pipelineRingSize > 0) {
+      // Process the requests and publish the updates through the staged engine
+      if (config.requestThreads > 0) {
+        log.warn("The <requestThreads> entry is ignored, as the pipeline is enabled");
+      }
+      requestLanes = null;
+      pipeline = new PortfolioPipeline(config.pipelineRingSize, this::apply, this::send);
+      metrics.setRequestQueueGauges(pipeline::pendingRequests, pipeline::maxPendingRequests);
+      metrics.setDispatchQueueGauges(pipeline::pendingOutbound, pipeline::maxPendingOutbound);
+    } else if (config.requestThreads > 0) {
+      // Prepare the lanes to process the requests in parallel. All the requests for the same
+      // portfolio are bound to the same lane, so that they are processed in order
+      pipeline = null;
+      ExecutionBackend requestBackend = ExecutionBackend.forName(config.executionBackend,
+          config.requestThreads, "Portfolio-Request");
+      requestLanes = new SerialExecutor[config.requestThreads * LANES_PER_REQUEST_THREAD];
+      for (int i = 0; i < requestLanes.length; i++) {
+        requestLanes[i] = new SerialExecutor(requestBackend.newLaneExecutor());
+      }
+      metrics.setRequestQueueGauges(this::pendingRequests, this::maxPendingRequests);
+      log.info("Processing requests on {} lanes, with {}", requestLanes.length, requestBackend);
+    } else {
+      pipeline = null;
+      requestLanes = null;
+    }
 
     InitialContext jndiContext = config.newInitialContext();
     Session consumingSession = newSession(jndiContext, config);
@@ -80,27 +207,82 @@ public class PortfolioService implements MessageListener {
     // requests.
     newConsumer(jndiContext, consumingSession, config.queueName, this);
 
-    // Here we create a new Session, as some broker (e.g, IBM_MQ), does not
+    // Here we create new Sessions, as some broker (e.g, IBM_MQ), does not
     // support the use of synchronous operations on a session which has already
     // been used for asynchronous operations
-    Session publishlingSession = newSession(jndiContext, config);
+    Session[] publishlingSessions = newSessions(jndiContext, config, false);
+
+    // The codec used to convert the PortfolioMessage objects to JMS messages
+    PortfolioMessageCodec codec = PortfolioMessageCodec.forName(config.messageCodec);
+    log.info("Using message codec [{}]", config.messageCodec);
+
+    // Instantiate the Topic sender; in case of batches, dedicated transacted Sessions are required
+    if (config.publishBatchSize > 0) {
+      Session[] batchSessions = newSessions(jndiContext, config, true);
+      portfolioTopicSender = new TopicSender(jndiContext, batchSessions, config.topicName, codec,
+          metrics.lostMessages, config.publishBatchSize, config.publishBatchInterval);
+    } else {
+      portfolioTopicSender =
+          new TopicSender(jndiContext, publishlingSessions, config.topicName, codec,
+              metrics.lostMessages);
+    }
+
+    // Put the conflation stage in front of the Topic sender, if configured
+    if (config.conflationInterval > 0) {
+      conflater = new UpdateConflater(this::publish,
+          config.conflationInterval, config.conflationMaxPending);
+    } else {
+      conflater = null;
+    }
 
-    // Instantiate the Topic sender
-    portfolioTopicSender = new TopicSender(jndiContext, publishlingSession, config.topicName);
+    if (valuation != null) {
+      valuationTopicSender =
+          new TopicSender(jndiContext, publishlingSessions, config.valuationTopicName, codec,
+              metrics.lostMessages);
+    } else {
+      valuationTopicSender = null;
+    }
+
+    if (config.aggregateTopicName != null) {
+      aggregateTopicSender =
+          new TopicSender(jndiContext, publishlingSessions, config.aggregateTopicName, codec,
+              metrics.lostMessages);
+    } else {
+      aggregateTopicSender = null;
+    }
 
     // Instantiate the Responder for responses on temp queues
-    portfolioCurrentStatus = new Responder(publishlingSession);
+    portfolioCurrentStatus = new Responder(publishlingSessions, codec);
   }
 
 
   public void start() {
     // Create the portfolios and attach a listener to them
     for (int i = 1; i <= portfolioNum; i++) {
-      String portfolioId = String.format("portfolio%d", i);
+      String portfolioId = portfolioIdPrefix + i;
       MyPortfolioListener listener = new MyPortfolioListener(portfolioId);
       Portfolio portfolio = feed.getPortfolio(portfolioId);
+      if (portfolio == null) {
+        // Prevented by the validation of the configuration, unless the feed was built otherwise
+        throw new IllegalStateException("Portfolio " + portfolioId + " not available; please "
+            + "check the <portfolioNum> and <portfolioMaxNum> entries");
+      }
       portfolio.setListener(listener);
     }
+
+    // Publish the total positions, if configured
+    if (aggregateTopicSender != null) {
+      aggregates.startPublishing(aggregateInterval, (stock, qty) -> aggregateTopicSender
+        .sendMessage(new PortfolioMessage(AggregatePositions.AGGREGATE_ID, stock, qty)));
+    }
+
+    // Publish the values of the portfolios, if configured
+    if (valuation != null) {
+      valuation.start();
+    }
+
+    // Generate the simulated trading activity, if configured
+    feed.startTrading();
     log.debug("Portfolio service ready");
   }
 
@@ -113,57 +295,423 @@ public class PortfolioService implements MessageListener {
 
     if (!(message instanceof MapMessage)) {
       log.warn("Portfolio: not a MapMessage");
+      metrics.invalidRequests.increment();
+      return;
+    }
+
+    if (pipeline != null) {
+      // Decode the whole request into the ring, as the JMS message is bound to the delivery thread
+      pipeline.submit((MapMessage) message);
       return;
     }
 
     try {
-      MapMessage mapMessage = (MapMessage) message;
-      String opMsg = mapMessage.getString("request");
-      String portfolioId = mapMessage.getString("portfolio");
-      log.debug("Portfolio: message: request received: {} for {} ", opMsg, portfolioId);
-
-      Portfolio requestedPortfolio = feed.getPortfolio(portfolioId);
-
-      switch (opMsg) {
-        case PORTFOLIO_STATUS_REQUEST:
-          requestedPortfolio.flushToListener((String stock, long qty) -> {
-            PortfolioMessage toSend = new PortfolioMessage(portfolioId, stock, qty);
-            portfolioCurrentStatus.sendObjectResponse(toSend, mapMessage);
-          });
-          break;
-
-        case BUY_REQUEST:
-        case SELL_REQUEST:
-          String stock = mapMessage.getString("stock");
-          long qty = mapMessage.getLong("quantity");
-          try {
-            if (opMsg.equals(BUY_REQUEST)) {
-              requestedPortfolio.buy(stock, qty);
-            } else {
-              requestedPortfolio.sell(stock, qty);
-            }
-          } catch (IllegalArgumentException iae) {
-            log.warn("Portfolio: IllegalArgumentException during buy/sell:", iae);
-          }
+      // Decode the whole request here, as the JMS message is bound to the delivery thread
+      PortfolioRequest request = new PortfolioRequest((MapMessage) message);
+      log.debug("Portfolio: message: request received: {} for {} ", request.op,
+          request.portfolioId);
 
-        default:
-          break;
+      if (!isComplete(request)) {
+        return;
+      }
+
+      if (requestLanes != null) {
+        if (request.op.equals(BATCH_REQUEST)) {
+          // The orders of a batch may concern many portfolios
+          dispatchBatch(request);
+        } else {
+          // Hand the request off to the lane of the portfolio
+          // (requests with no portfolio, such as the aggregate ones, share a lane)
+          laneOf(request.portfolioId).execute(() -> process(request));
+        }
+      } else {
+        process(request);
       }
     } catch (JMSException e) {
       log.warn("Portfolio: JMSException", e);
+      metrics.invalidRequests.increment();
+    }
+  }
+
+  /**
+   * Returns the request lane of a portfolio.
+   */
+  private SerialExecutor laneOf(String portfolioId) {
+    return requestLanes[(Objects.hashCode(portfolioId) & Integer.MAX_VALUE) % requestLanes.length];
+  }
+
+  /**
+   * Hands the orders of a batch request off to the lanes of their portfolios, so that they are
+   * applied in order with respect to the other requests for the same portfolios; the latency of the
+   * request is recorded once all the orders are applied.
+   */
+  private void dispatchBatch(PortfolioRequest request) {
+    metrics.batchRequests.increment();
+
+    Map<String, List<Integer>> groups = groupBatch(request);
+    if (groups.isEmpty()) {
+      metrics.requestLatency.recordSince(request.receivedAt);
+      return;
+    }
+
+    AtomicInteger pendingGroups = new AtomicInteger(groups.size());
+    for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+      String portfolioId = group.getKey();
+      List<Integer> orders = group.getValue();
+      laneOf(portfolioId).execute(() -> {
+        try {
+          applyBatch(request, portfolioId, orders);
+        } finally {
+          if (pendingGroups.decrementAndGet() == 0) {
+            metrics.requestLatency.recordSince(request.receivedAt);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Tells whether a decoded request carries the mandatory fields; otherwise, it is accounted as
+   * invalid.
+   */
+  private boolean isComplete(PortfolioRequest request) {
+    // The orders of a batch may carry their own portfolios, while the aggregate positions concern
+    // no portfolio
+    if (request.op == null || (request.portfolioId == null
+        && !request.op.equals(BATCH_REQUEST) && !request.op.equals(AGGREGATE_REQUEST))) {
+      log.warn("Portfolio: incomplete request ignored");
+      metrics.invalidRequests.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Processes a request taken from the ring of the pipeline, on the apply stage.
+   */
+  private void apply(PortfolioRequest request) {
+    log.debug("Portfolio: message: request received: {} for {} ", request.op,
+        request.portfolioId);
+    if (isComplete(request)) {
+      process(request);
+    }
+  }
+
+  /**
+   * Processes a request received from the Queue consumer, recording its latency.
+   */
+  private void process(PortfolioRequest request) {
+    try {
+      doProcess(request);
+    } catch (RejectedExecutionException e) {
+      // The portfolio cannot keep up with its updates, with the fail-fast policy
+      log.warn("Portfolio: {} request rejected for {}: {}", request.op, request.portfolioId,
+          e.getMessage());
+      metrics.overloadRejections.increment();
+    } finally {
+      metrics.requestLatency.recordSince(request.receivedAt);
+    }
+  }
+
+  private void doProcess(PortfolioRequest request) {
+    if (request.op.equals(BATCH_REQUEST)) {
+      processBatch(request);
+      return;
+    }
+    if (request.op.equals(AGGREGATE_REQUEST)) {
+      processAggregate(request);
+      return;
+    }
+
+    String portfolioId = request.portfolioId;
+
+    Portfolio requestedPortfolio = feed.getPortfolio(portfolioId);
+    if (requestedPortfolio == null) {
+      log.warn("Portfolio: request ignored for unknown portfolio {}", portfolioId);
+      metrics.invalidRequests.increment();
+      return;
+    }
+
+    switch (request.op) {
+      case PORTFOLIO_STATUS_REQUEST:
+        metrics.statusRequests.increment();
+
+        // The request may be reused before the responses are sent
+        Destination replyTo = request.replyTo;
+        String correlationId = request.correlationId;
+        boolean single = request.snapshot;
+        PortfolioSnapshotListener replier = snapshot -> {
+          if (snapshot.delta) {
+            // Reply with a single message carrying the changes only
+            metrics.deltaStatusReplies.increment();
+            respond(snapshot, replyTo, correlationId);
+          } else if (single) {
+            // Reply with a single message carrying the whole portfolio; the snapshot is shared by
+            // the requests until the portfolio changes, and so is its encoded form, but only with
+            // the bytes codec, as the other codecs fill each JMS message anew
+            respond(snapshot, replyTo, correlationId);
+          } else {
+            // Reply with a message for each stock, taken from the shared snapshot as well
+            for (int i = 0; i < snapshot.size(); i++) {
+              respond(snapshot.entry(i), replyTo, correlationId);
+            }
+          }
+        };
+
+        if (request.since >= 0) {
+          // The whole portfolio is passed if the changes are no longer available
+          requestedPortfolio.flushChanges(request.since, replier);
+        } else {
+          requestedPortfolio.flushSnapshot(replier);
+        }
+        break;
+
+      case BUY_REQUEST:
+      case SELL_REQUEST:
+        try {
+          boolean buy = request.op.equals(BUY_REQUEST);
+          if (buy) {
+            metrics.buyRequests.increment();
+          } else {
+            metrics.sellRequests.increment();
+          }
+
+          // The stock has already been resolved upon decoding
+          if (request.stockId == -1) {
+            throw new IllegalArgumentException(request.stock + " does not exist");
+          }
+          if (buy) {
+            requestedPortfolio.buy(request.stockId, request.qty);
+          } else {
+            requestedPortfolio.sell(request.stockId, request.qty);
+          }
+        } catch (IllegalArgumentException iae) {
+          log.warn("Portfolio: IllegalArgumentException during buy/sell:", iae);
+          metrics.rejectedOrders.increment();
+        }
+        break;
+
+      default:
+        log.warn("Portfolio: unknown request {} ignored", request.op);
+        metrics.invalidRequests.increment();
+        break;
+    }
+  }
+
+
+  /**
+   * Processes the orders of a batch request, grouped by portfolio: the orders of each portfolio are
+   * applied as a whole, or rejected as a whole, independently of the other portfolios.
+   */
+  private void processBatch(PortfolioRequest request) {
+    metrics.batchRequests.increment();
+
+    for (Map.Entry<String, List<Integer>> group : groupBatch(request).entrySet()) {
+      applyBatch(request, group.getKey(), group.getValue());
+    }
+  }
+
+  /**
+   * Groups the orders of a batch request by portfolio, preserving their order.
+   */
+  private Map<String, List<Integer>> groupBatch(PortfolioRequest request) {
+    Map<String, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < request.orderCount; i++) {
+      if (request.orderPortfolios[i] == null) {
+        log.warn("Portfolio: batch order {} with no portfolio ignored", i);
+        metrics.invalidRequests.increment();
+        continue;
+      }
+      groups.computeIfAbsent(request.orderPortfolios[i], k -> new ArrayList<>()).add(i);
+    }
+    return groups;
+  }
+
+  /**
+   * Applies the orders of a batch request for a portfolio as a whole, or rejects them as a whole.
+   */
+  private void applyBatch(PortfolioRequest request, String portfolioId, List<Integer> orders) {
+    Portfolio requestedPortfolio = feed.getPortfolio(portfolioId);
+    if (requestedPortfolio == null) {
+      log.warn("Portfolio: batch orders ignored for unknown portfolio {}", portfolioId);
+      metrics.invalidRequests.increment();
+      return;
+    }
+
+    int[] stockIds = new int[orders.size()];
+    long[] qtys = new long[orders.size()];
+    boolean valid = true;
+    for (int j = 0; j < orders.size(); j++) {
+      int i = orders.get(j);
+      stockIds[j] = request.orderStockIds[i];
+      if (stockIds[j] == -1) {
+        log.warn("Portfolio: batch order on unknown stock {} for {}", request.orderStocks[i],
+            portfolioId);
+        valid = false;
+      } else if (BUY_REQUEST.equals(request.orderOps[i]) && request.orderQtys[i] > 0) {
+        qtys[j] = request.orderQtys[i];
+      } else if (SELL_REQUEST.equals(request.orderOps[i]) && request.orderQtys[i] > 0) {
+        qtys[j] = -request.orderQtys[i];
+      } else {
+        log.warn("Portfolio: invalid batch order {} {} {} for {}", request.orderOps[i],
+            request.orderQtys[i], request.orderStocks[i], portfolioId);
+        valid = false;
+      }
+    }
+
+    try {
+      if (!valid) {
+        throw new IllegalArgumentException("Invalid orders in the batch for " + portfolioId);
+      }
+      requestedPortfolio.applyBatch(stockIds, qtys, stockIds.length);
+    } catch (IllegalArgumentException iae) {
+      log.warn("Portfolio: batch rejected for {}: {}", portfolioId, iae.getMessage());
+      metrics.rejectedOrders.add(orders.size());
+    } catch (RejectedExecutionException e) {
+      // Let the orders of the other portfolios go on
+      log.warn("Portfolio: batch rejected for {}: {}", portfolioId, e.getMessage());
+      metrics.overloadRejections.increment();
+    }
+  }
+
+  /**
+   * Replies with the total position of the requested stock, or with the total positions of all the
+   * held stocks as a snapshot if no stock is requested; both carry the aggregate id in place of the
+   * portfolio id.
+   */
+  private void processAggregate(PortfolioRequest request) {
+    metrics.aggregateRequests.increment();
+
+    if (request.stock != null) {
+      if (request.stockId == -1) {
+        log.warn("Portfolio: aggregate position requested for unknown stock {}", request.stock);
+        metrics.invalidRequests.increment();
+        return;
+      }
+      respond(new PortfolioMessage(AggregatePositions.AGGREGATE_ID, request.stock,
+          aggregates.totalQty(request.stockId)), request.replyTo, request.correlationId);
+      return;
+    }
+
+    List<String> stocks = new ArrayList<>();
+    List<Long> qtys = new ArrayList<>();
+    aggregates.forEachHeld((stock, qty) -> {
+      stocks.add(stock);
+      qtys.add(qty);
+    });
+    respond(new PortfolioSnapshotMessage(AggregatePositions.AGGREGATE_ID,
+        stocks.toArray(new String[0]), qtys.stream().mapToLong(Long::longValue).toArray()),
+        request.replyTo, request.correlationId);
+  }
+
+  /**
+   * Sends a response, through the publish stage if the pipeline is enabled.
+   */
+  private void respond(PortfolioMessage response, Destination replyTo, String correlationId) {
+    if (pipeline != null) {
+      pipeline.respond(response, replyTo, correlationId);
+    } else {
+      portfolioCurrentStatus.sendResponse(response, replyTo, correlationId);
     }
   }
 
+  /**
+   * Sends a snapshot response, through the publish stage if the pipeline is enabled.
+   */
+  private void respond(PortfolioSnapshotMessage response, Destination replyTo,
+      String correlationId) {
+    if (pipeline != null) {
+      pipeline.respond(response, replyTo, correlationId);
+    } else {
+      portfolioCurrentStatus.sendResponse(response, replyTo, correlationId);
+    }
+  }
 
   /**
    * Manages update received from the feed.
    */
-  private void onUpdate(String portfolioId, String key, long qty) {
+  private void onUpdate(String portfolioId, String key, long qty, long version) {
+    if (pipeline != null) {
+      // Let the publish stage send the update
+      pipeline.update(portfolioId, key, qty, version);
+      return;
+    }
+
     // Prepare the object to send through JMS
-    PortfolioMessage toSend = new PortfolioMessage(portfolioId, key, qty);
+    PortfolioMessage toSend = new PortfolioMessage(portfolioId, key, qty, version);
+
+    if (conflater != null) {
+      // Let the conflation stage publish the update
+      conflater.offer(toSend);
+    } else {
+      // Publish the update to JMS
+      publish(toSend);
+    }
+  }
 
-    // Publish the update to JMS
-    portfolioTopicSender.sendObjectMessage(toSend);
+  /**
+   * Sends an update or a response taken from the ring of the pipeline, on the publish stage.
+   */
+  private void send(PortfolioPipeline.Outbound event, boolean endOfBatch) {
+    if (event.snapshot != null) {
+      portfolioCurrentStatus.sendResponse(event.snapshot, event.replyTo, event.correlationId);
+    } else if (event.response != null) {
+      portfolioCurrentStatus.sendResponse(event.response, event.replyTo, event.correlationId);
+    } else {
+      PortfolioMessage toSend =
+          new PortfolioMessage(event.portfolioId, event.stock, event.qty, event.version);
+      if (conflater != null) {
+        conflater.offer(toSend);
+      } else {
+        publish(toSend);
+      }
+    }
+
+    if (endOfBatch && publishBatchSize > 0) {
+      // Commit the whole batch at once, rather than waiting for the batch interval
+      portfolioTopicSender.commitAll();
+    }
+  }
+
+  /**
+   * Publishes an update on the topic, recording the time spent, including the wait for the session.
+   */
+  private void publish(PortfolioMessage update) {
+    long start = System.nanoTime();
+    try {
+      portfolioTopicSender.sendMessage(update);
+    } finally {
+      metrics.publishLatency.recordSince(start);
+    }
+  }
+
+  /**
+   * Publishes the value of a portfolio on the valuation topic.
+   */
+  private void publishValuation(PortfolioValuationMessage valuation) {
+    valuationTopicSender.sendValuation(valuation);
+  }
+
+  /**
+   * Returns the number of requests enqueued and not yet processed, over all the request lanes.
+   */
+  private long pendingRequests() {
+    long pending = 0;
+    for (SerialExecutor lane : requestLanes) {
+      pending += lane.depth();
+    }
+    return pending;
+  }
+
+  /**
+   * Returns the max number of requests ever enqueued at the same time in a single request lane.
+   */
+  private long maxPendingRequests() {
+    long max = 0;
+    for (SerialExecutor lane : requestLanes) {
+      max = Math.max(max, lane.maxDepth());
+    }
+    return max;
   }
 
   /**
@@ -179,9 +727,9 @@ public class PortfolioService implements MessageListener {
     }
 
     @Override
-    public void update(String stock, long qty) {
+    public void update(String stock, long qty, long version) {
       // Update the quantity
-      onUpdate(portfolioId, stock, qty);
+      onUpdate(portfolioId, stock, qty, version);
       log.debug("Portfolio: " + portfolioId + ": updated " + stock);
     }
   }
@@ -190,6 +738,26 @@ public class PortfolioService implements MessageListener {
    * Creates a new JMS Session
    */
   private static Session newSession(InitialContext jndiContext, Configuration config) {
+    return newSession(jndiContext, config, false);
+  }
+
+  /**
+   * Creates the pool of JMS Sessions used for publishing, possibly transacted.
+   */
+  private static Session[] newSessions(InitialContext jndiContext, Configuration config,
+      boolean transacted) {
+    Session[] sessions = new Session[config.publishSessions];
+    for (int i = 0; i < sessions.length; i++) {
+      sessions[i] = newSession(jndiContext, config, transacted);
+    }
+    return sessions;
+  }
+
+  /**
+   * Creates a new JMS Session, possibly transacted.
+   */
+  private static Session newSession(InitialContext jndiContext, Configuration config,
+      boolean transacted) {
     try {
       log.info("Looking up queue connection factory [{}]...", config.connectionFactoryName);
       ConnectionFactory connectionFactory =
@@ -209,7 +777,8 @@ public class PortfolioService implements MessageListener {
       log.debug("Connection started");
 
       // Get the Session from our Connection
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Session session = transacted ? connection.createSession(true, Session.SESSION_TRANSACTED)
+          : connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
       log.debug("Session created");
 
       return session;
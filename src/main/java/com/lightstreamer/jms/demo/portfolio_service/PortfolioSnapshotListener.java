@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioSnapshotMessage;
+
+/**
+ * Used to receive the whole contents of a portfolio at once, in an asynchronous way.
+ */
+@FunctionalInterface
+public interface PortfolioSnapshotListener {
+
+  /**
+   * Called with the current contents of the portfolio, or with its recent changes. The snapshot may
+   * be shared with other listeners, hence its arrays must not be modified.
+   */
+  public void snapshot(PortfolioSnapshotMessage snapshot);
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.lightstreamer.jms.demo.portfolio_service;
+
+/**
+ * Observes every change of the quantity of a stock in a portfolio, including the quantities
+ * recovered upon startup, so that derived figures can be maintained incrementally.
+ */
+@FunctionalInterface
+public interface PositionObserver {
+
+  /**
+   * Invoked on the executor of the portfolio, in the order of the changes; it must not block for
+   * long, as it delays the notifications of the portfolio.
+   *
+   * @param oldQty the previous quantity; 0 if the stock was not held.
+   * @param newQty the new quantity; 0 if the stock is no longer held.
+   */
+  void positionChanged(String portfolioId, int stockId, long oldQty, long newQty);
+
+  /**
+   * Returns an observer which tells this observer and then the provided one.
+   */
+  default PositionObserver andThen(PositionObserver next) {
+    return (portfolioId, stockId, oldQty, newQty) -> {
+      positionChanged(portfolioId, stockId, oldQty, newQty);
+      next.positionChanged(portfolioId, stockId, oldQty, newQty);
+    };
+  }
+}
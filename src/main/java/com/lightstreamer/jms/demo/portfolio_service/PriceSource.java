@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.lightstreamer.jms.demo.portfolio_service;
+
+/**
+ * Provides the prices of the stocks, e.g. from a market data feed.
+ */
+public interface PriceSource {
+
+  /**
+   * Receives the prices from a source.
+   */
+  @FunctionalInterface
+  interface Listener {
+
+    /**
+     * Notifies the current price of a stock, in cents; may be invoked from any thread.
+     */
+    void onPrice(String stock, long price);
+  }
+
+  /**
+   * Starts notifying the provided listener, first with the current prices, if known, and then with
+   * their changes.
+   */
+  void start(Listener listener);
+
+  /**
+   * Returns the source of the provided name, which can be either "simulated", or the fully
+   * qualified name of a class implementing this interface, with a public no-argument constructor.
+   *
+   * @param intervalMillis the interval between the changes of the simulated prices.
+   */
+  static PriceSource forName(String name, long intervalMillis) {
+    if (name.equals("simulated")) {
+      return new SimulatedPriceFeed(intervalMillis);
+    }
+
+    try {
+      return Class.forName(name)
+        .asSubclass(PriceSource.class)
+        .getDeclaredConstructor()
+        .newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException("Unknown price source: " + name, e);
+    }
+  }
+}
@@ -14,32 +14,46 @@
  */
 package com.lightstreamer.jms.demo.portfolio_service;
 
-import java.io.Serializable;
-
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
-import javax.jms.ObjectMessage;
 import javax.jms.Session;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessage;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessageCodec;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioSnapshotMessage;
+
+/**
+ * Sends the responses to the direct requests through a pool of sessions. The responses are sharded
+ * on the sessions by portfolio id, so that the responses about the same portfolio are sent in
+ * order, while the responses about different portfolios can be sent in parallel. All accesses to a
+ * session are synchronized on the session, which may be shared with the {@link TopicSender}.
+ */
 public class Responder {
 
   private static Logger log = LoggerFactory.getLogger(Responder.class);
 
-  private final Session session;
+  private final Session[] sessions;
+
+  private final MessageProducer[] replyProducers;
 
-  private final MessageProducer replyProducer;
+  private final PortfolioMessageCodec codec;
 
-  public Responder(Session session) {
-    this.session = session;
+  public Responder(Session[] sessions, PortfolioMessageCodec codec) {
+    this.sessions = sessions;
+    this.codec = codec;
     try {
-      // We use a producer not bound to a destination: the request will carry
+      // We use producers not bound to a destination: the request will carry
       // the information about the destination
-      replyProducer = session.createProducer(null);
-      log.debug("Responder created");
+      replyProducers = new MessageProducer[sessions.length];
+      for (int i = 0; i < sessions.length; i++) {
+        replyProducers[i] = sessions[i].createProducer(null);
+      }
+      log.debug("Responder created with {} sessions", sessions.length);
     } catch (Exception e) {
       log.error("Error while creating the Responder");
       throw new RuntimeException(e);
@@ -47,27 +61,54 @@ public class Responder {
   }
 
   /**
-   * Sends an object message.
+   * Sends a portfolio message, encoded through the configured codec, as a response.
    */
-  public synchronized void sendObjectResponse(Serializable obj, Message request) {
-    try {
-      // Get a message
-      ObjectMessage objMessage = session.createObjectMessage();
-
-      // Fill it with obj (our message to be sent)
-      objMessage.setObject(obj);
+  public void sendResponse(PortfolioMessage message, Destination replyTo,
+      String correlationId) {
+    int shard = shardOf(message.portfolioId);
+    synchronized (sessions[shard]) {
+      try {
+        // Get a message filled with our message to be sent
+        Message response = codec.encode(sessions[shard], message);
 
-      // Correlate response with the request
-      objMessage.setJMSCorrelationID(request.getJMSCorrelationID());
+        log.debug("Sending response {}", message);
+        reply(shard, response, replyTo, correlationId);
+      } catch (JMSException e) {
+        log.warn("Portfolio: unable to send message", e);
+      }
+    }
+  }
 
-      log.debug("Sending response object " + obj);
+  /**
+   * Sends a portfolio snapshot, encoded through the configured codec, as a single response.
+   */
+  public void sendResponse(PortfolioSnapshotMessage snapshot, Destination replyTo,
+      String correlationId) {
+    int shard = shardOf(snapshot.portfolioId);
+    synchronized (sessions[shard]) {
+      try {
+        // Get a message filled with the whole snapshot
+        Message response = codec.encode(sessions[shard], snapshot);
 
-      // Send to JMS
-      replyProducer.send(request.getJMSReplyTo(), objMessage);
-    } catch (JMSException e) {
-      log.warn("Portfolio: unable to send message", e);
+        log.debug("Sending snapshot response {}", snapshot);
+        reply(shard, response, replyTo, correlationId);
+      } catch (JMSException e) {
+        log.warn("Portfolio: unable to send message", e);
+      }
     }
   }
 
+  private int shardOf(String portfolioId) {
+    return (portfolioId.hashCode() & Integer.MAX_VALUE) % sessions.length;
+  }
+
+  private void reply(int shard, Message response, Destination replyTo, String correlationId)
+      throws JMSException {
+    // Correlate response with the request
+    response.setJMSCorrelationID(correlationId);
+
+    // Send to JMS
+    replyProducers[shard].send(replyTo, response);
+  }
 
 }
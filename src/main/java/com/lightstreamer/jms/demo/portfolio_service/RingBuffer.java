@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded ring of pre-allocated events, handed off from any number of producers to a single
+ * consumer thread. A producer claims a slot through {@link #next()}, fills the event in place and
+ * makes it visible through {@link #publish(long)}, hence the hand-off allocates nothing and takes no
+ * lock.
+ *
+ * <p>
+ * The consumer takes all the events published so far as a batch, and it is told which event ends
+ * the batch, so that it can amortize its per-batch work (e.g. a commit). The slots of a batch are
+ * released only at its end. When the ring is full, the producers wait for the consumer, which
+ * propagates the back pressure to the upstream stage.
+ */
+final class RingBuffer<E> {
+
+  /**
+   * Processes the events taken from the ring, on the consumer thread.
+   */
+  @FunctionalInterface
+  interface EventHandler<E> {
+
+    void onEvent(E event, boolean endOfBatch);
+  }
+
+  private static Logger log = LoggerFactory.getLogger(RingBuffer.class);
+
+  /**
+   * The number of busy-spins before yielding, and then before parking, while waiting.
+   */
+  private static final int SPINS = 100;
+
+  /**
+   * The max time a waiting thread is parked before checking again.
+   */
+  private static final long MAX_PARK_NANOS = 1_000_000;
+
+  private final Object[] events;
+
+  private final int mask;
+
+  /**
+   * The sequence of the event last published in each slot.
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * The next sequence to be claimed by a producer.
+   */
+  private final AtomicLong claimed = new AtomicLong();
+
+  /**
+   * The next sequence to be consumed; the slots of the previous sequences are free.
+   */
+  private volatile long consumed;
+
+  /**
+   * The max number of events ever found pending by the consumer; written by the consumer only.
+   */
+  private volatile long maxDepth;
+
+  /**
+   * Tells whether the consumer is about to park, hence it needs to be woken up.
+   */
+  private volatile boolean consumerWaiting;
+
+  private volatile Thread consumer;
+
+  RingBuffer(int size, Supplier<E> factory) {
+    if (size <= 0 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("The ring size must be a power of 2: " + size);
+    }
+    events = new Object[size];
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      events[i] = factory.get();
+      published.set(i, -1);
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Claims the next slot, waiting for the consumer to release it if the ring is full.
+   *
+   * @return the sequence of the slot, to be passed to {@link #get(long)} and {@link #publish(long)}.
+   */
+  long next() {
+    long sequence = claimed.getAndIncrement();
+    long wrapPoint = sequence - events.length;
+    int waits = 0;
+    while (wrapPoint >= consumed) {
+      waits = idle(waits);
+    }
+    return sequence;
+  }
+
+  /**
+   * Returns the event of a claimed slot, to be filled in place.
+   */
+  @SuppressWarnings("unchecked")
+  E get(long sequence) {
+    return (E) events[(int) sequence & mask];
+  }
+
+  /**
+   * Makes the event of a claimed slot available to the consumer; each claimed slot must be
+   * published, or the consumer would stop there.
+   */
+  void publish(long sequence) {
+    published.set((int) sequence & mask, sequence);
+    if (consumerWaiting) {
+      LockSupport.unpark(consumer);
+    }
+  }
+
+  /**
+   * Returns the number of events claimed and not yet consumed.
+   */
+  long depth() {
+    return Math.max(claimed.get() - consumed, 0);
+  }
+
+  /**
+   * Returns the max number of events ever found pending by the consumer.
+   */
+  long maxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * Starts the consumer thread, which passes the events to the provided handler, in order.
+   */
+  void start(String threadName, EventHandler<E> handler) {
+    Thread thread = new Thread(() -> consume(handler), threadName);
+    thread.setDaemon(true);
+    consumer = thread;
+    thread.start();
+  }
+
+  private void consume(EventHandler<E> handler) {
+    long next = 0;
+    int waits = 0;
+    while (true) {
+      // Take as a batch all the events published so far, in sequence
+      long available = next;
+      while (available - next < events.length
+          && published.get((int) available & mask) == available) {
+        available++;
+      }
+
+      if (available == next) {
+        waits = awaitPublished(next, waits);
+        continue;
+      }
+      waits = 0;
+
+      long depth = claimed.get() - next;
+      if (depth > maxDepth) {
+        maxDepth = depth;
+      }
+
+      for (long sequence = next; sequence < available; sequence++) {
+        try {
+          handler.onEvent(get(sequence), sequence == available - 1);
+        } catch (RuntimeException e) {
+          log.warn("Exception caught while processing an event", e);
+        }
+      }
+
+      // Release the whole batch at once
+      next = available;
+      consumed = next;
+    }
+  }
+
+  private int awaitPublished(long sequence, int waits) {
+    if (waits < 2 * SPINS) {
+      return idle(waits);
+    }
+
+    // Announce the park before checking again, so that a producer publishing in between wakes us
+    consumerWaiting = true;
+    if (published.get((int) sequence & mask) != sequence) {
+      LockSupport.parkNanos(this, MAX_PARK_NANOS);
+    }
+    consumerWaiting = false;
+    return waits;
+  }
+
+  /**
+   * Waits a little, with a growing backoff: busy-spin, yield and then park.
+   */
+  private static int idle(int waits) {
+    if (waits < SPINS) {
+      // Busy-spin
+    } else if (waits < 2 * SPINS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(MAX_PARK_NANOS / 20);
+    }
+    return waits + 1;
+  }
+}
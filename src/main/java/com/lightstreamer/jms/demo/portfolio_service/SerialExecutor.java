@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.metrics.LatencyHistogram;
+
+/**
+ * Executes the submitted tasks one at a time, in FIFO order, by borrowing threads from a shared
+ * executor. Many instances can share the same executor, so that each key (e.g. a portfolio) gets its
+ * own ordered lane, while the number of threads depends only on the shared executor.
+ *
+ * <p>
+ * A lane never occupies more than one thread at a time; after a limited number of tasks it yields
+ * the thread, so that a busy lane cannot starve the others.
+ *
+ * <p>
+ * The depth of the lane is tracked, and, if a histogram is provided, the time from the submission
+ * to the completion of each task is recorded. The lane can be bounded, in which case the configured
+ * {@link OverflowPolicy} applies when it is full; note that, with the BLOCK policy, a task must
+ * never submit to its own lane, or it would wait forever.
+ */
+public class SerialExecutor implements Executor {
+
+  private static Logger log = LoggerFactory.getLogger(SerialExecutor.class);
+
+  /**
+   * The max number of tasks executed before yielding the thread to the other lanes.
+   */
+  private static final int MAX_BATCH = 64;
+
+  private final Executor shared;
+
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Tells whether a drain of this lane is either scheduled on or running on the shared executor.
+   */
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private final Runnable drainer = this::drain;
+
+  /**
+   * The number of tasks submitted and not yet completed.
+   */
+  private final AtomicInteger depth = new AtomicInteger();
+
+  /**
+   * The max depth ever reached; updated without synchronization, hence it may miss a concurrent
+   * peak, which is fine for monitoring purposes.
+   */
+  private volatile int maxDepth;
+
+  /**
+   * Records the latency of the tasks; null if not required.
+   */
+  private final LatencyHistogram latencies;
+
+  /**
+   * The max number of pending tasks; 0 means unbounded.
+   */
+  private final int capacity;
+
+  private final OverflowPolicy policy;
+
+  /**
+   * Tells whether the submitters may wait for room.
+   */
+  private final boolean blocking;
+
+  /**
+   * The number of tasks discarded because of the DROP_OLDEST policy.
+   */
+  private final AtomicLong dropped = new AtomicLong();
+
+  public SerialExecutor(Executor shared) {
+    this(shared, null);
+  }
+
+  public SerialExecutor(Executor shared, LatencyHistogram latencies) {
+    this(shared, latencies, 0, OverflowPolicy.BLOCK);
+  }
+
+  public SerialExecutor(Executor shared, LatencyHistogram latencies, int capacity,
+      OverflowPolicy policy) {
+    this.shared = shared;
+    this.latencies = latencies;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.blocking = capacity > 0
+        && (policy == OverflowPolicy.BLOCK || policy == OverflowPolicy.CONFLATE);
+  }
+
+  /**
+   * Enqueues a task, applying the overflow policy if the lane is full.
+   *
+   * @throws RejectedExecutionException if the lane is full and the policy is FAIL_FAST, or if the
+   *         shared executor refuses to run the lane; in the latter case, the task is withdrawn.
+   */
+  @Override
+  public void execute(Runnable task) {
+    if (capacity > 0 && depth.get() >= capacity) {
+      makeRoom();
+    }
+    enqueue(task);
+  }
+
+  /**
+   * Enqueues a task whose room has already been checked through {@link #hasRoomFor}: unlike
+   * {@link #execute}, it is never refused, as concurrent submitters may have taken the room in the
+   * meantime, hence the lane may exceed its capacity by a few tasks. The other policies apply as
+   * usual.
+   */
+  public void executeAdmitted(Runnable task) {
+    if (capacity > 0 && depth.get() >= capacity && policy != OverflowPolicy.FAIL_FAST) {
+      makeRoom();
+    }
+    enqueue(task);
+  }
+
+  private void enqueue(Runnable task) {
+    // Count the task before enqueuing it, so that the depth never goes below zero
+    int current = depth.incrementAndGet();
+    if (current > maxDepth) {
+      maxDepth = current;
+    }
+
+    Runnable queued = latencies != null ? new TimedTask(task, latencies) : task;
+    tasks.add(queued);
+    try {
+      schedule();
+    } catch (RuntimeException e) {
+      // Withdraw the task, unless a running drain has already taken it
+      if (tasks.remove(queued)) {
+        if (depth.decrementAndGet() == capacity - 1 && blocking) {
+          synchronized (this) {
+            notifyAll();
+          }
+        }
+        throw e;
+      }
+    }
+  }
+
+  private void makeRoom() {
+    switch (policy) {
+      case FAIL_FAST:
+        throw new RejectedExecutionException("Lane full: " + capacity + " pending tasks");
+
+      case DROP_OLDEST:
+        while (depth.get() >= capacity) {
+          // The task being executed cannot be dropped; in that case, exceed the capacity by one
+          if (tasks.poll() == null) {
+            break;
+          }
+          depth.decrementAndGet();
+          dropped.incrementAndGet();
+        }
+        break;
+
+      default:
+        synchronized (this) {
+          while (depth.get() >= capacity) {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new RejectedExecutionException("Interrupted while waiting for room", e);
+            }
+          }
+        }
+        break;
+    }
+  }
+
+  /**
+   * Tells whether a new task would be refused, as the lane is full and the policy is FAIL_FAST.
+   */
+  public boolean isSaturated() {
+    return !hasRoomFor(1);
+  }
+
+  /**
+   * Tells whether the provided number of new tasks would all be accepted, that is, unless the lane
+   * is bounded with the FAIL_FAST policy, whether they fit in it.
+   */
+  public boolean hasRoomFor(int newTasks) {
+    return policy != OverflowPolicy.FAIL_FAST || capacity == 0
+        || depth.get() + newTasks <= capacity;
+  }
+
+  /**
+   * Returns the number of tasks discarded to make room for newer ones.
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Returns the number of tasks submitted and not yet completed.
+   */
+  public int depth() {
+    return depth.get();
+  }
+
+  /**
+   * Returns the max number of tasks ever submitted and not yet completed at the same time.
+   */
+  public int maxDepth() {
+    return maxDepth;
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      try {
+        shared.execute(drainer);
+      } catch (RuntimeException e) {
+        // Release the lane, so that a later submission can schedule it again
+        scheduled.set(false);
+        throw e;
+      }
+    }
+  }
+
+  private void drain() {
+    Runnable task;
+    int executed = 0;
+    try {
+      while (executed < MAX_BATCH && (task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          log.warn("Exception caught while executing a task", e);
+        } finally {
+          // Account for the task even if it threw an Error, which is left to the shared executor
+          if (depth.decrementAndGet() == capacity - 1 && blocking) {
+            // Wake up the submitters waiting for room, if any
+            synchronized (this) {
+              notifyAll();
+            }
+          }
+        }
+        executed++;
+      }
+    } finally {
+      // Release the lane and check again, as a task may have been added after the last poll; this
+      // also holds upon an Error, so that the lane is never left marked as scheduled
+      scheduled.set(false);
+      if (!tasks.isEmpty()) {
+        try {
+          schedule();
+        } catch (RuntimeException e) {
+          // The lane is released, hence the next submission will try again
+          log.warn("Lane not rescheduled; {} pending tasks left", depth.get(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wraps a task to record the time from its submission to its completion.
+   */
+  private static final class TimedTask implements Runnable {
+
+    private final Runnable task;
+
+    private final LatencyHistogram latencies;
+
+    private final long submittedAt = System.nanoTime();
+
+    TimedTask(Runnable task, LatencyHistogram latencies) {
+      this.task = task;
+      this.latencies = latencies;
+    }
+
+    @Override
+    public void run() {
+      try {
+        task.run();
+      } finally {
+        latencies.recordSince(submittedAt);
+      }
+    }
+  }
+}
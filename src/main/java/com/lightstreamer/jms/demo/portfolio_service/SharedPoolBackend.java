@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs all the lanes on a fixed pool of platform threads, so that the number of threads does not
+ * depend on the number of lanes.
+ */
+final class SharedPoolBackend implements ExecutionBackend {
+
+  private final ExecutorService pool;
+
+  private final int threads;
+
+  SharedPoolBackend(int threads, String threadPrefix) {
+    this.threads = threads;
+    pool = Executors.newFixedThreadPool(threads, new NamedThreadFactory(threadPrefix, false));
+  }
+
+  @Override
+  public Executor newLaneExecutor() {
+    return pool;
+  }
+
+  @Override
+  public String toString() {
+    return "shared pool of " + threads + " threads";
+  }
+}
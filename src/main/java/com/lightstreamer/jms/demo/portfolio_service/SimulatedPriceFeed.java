@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulates the prices of all the stocks of the universe: each stock starts from a random price
+ * between 10.00 and 500.00, and at each interval a tenth of the stocks move by up to 1% of their
+ * price, in either direction.
+ */
+final class SimulatedPriceFeed implements PriceSource {
+
+  private static Logger log = LoggerFactory.getLogger(SimulatedPriceFeed.class);
+
+  private final long intervalMillis;
+
+  private final Random random = new Random();
+
+  /**
+   * The current prices, in cents, indexed by stock id; accessed by the scheduler thread only.
+   */
+  private long[] prices;
+
+  SimulatedPriceFeed(long intervalMillis) {
+    this.intervalMillis = intervalMillis;
+  }
+
+  @Override
+  public void start(Listener listener) {
+    prices = new long[StockUniverse.size()];
+    for (int i = 0; i < prices.length; i++) {
+      prices[i] = 1000 + random.nextInt(49001);
+      listener.onPrice(StockUniverse.symbol(i), prices[i]);
+    }
+
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("Portfolio-Prices", true));
+    scheduler.scheduleAtFixedRate(() -> move(listener), intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+    log.info("Simulating the prices of {} stocks, changing every {} ms", prices.length,
+        intervalMillis);
+  }
+
+  private void move(Listener listener) {
+    int moves = 1 + prices.length / 10;
+    for (int i = 0; i < moves; i++) {
+      int stockId = random.nextInt(prices.length);
+      long step = Math.max(1, prices[stockId] / 100);
+      long price = prices[stockId] + (random.nextBoolean() ? 1 : -1) * (1 + random.nextInt(
+          (int) Math.min(step, Integer.MAX_VALUE)));
+      prices[stockId] = Math.max(1, price);
+      listener.onPrice(StockUniverse.symbol(stockId), prices[stockId]);
+    }
+  }
+}
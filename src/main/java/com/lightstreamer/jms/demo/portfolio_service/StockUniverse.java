@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The set of stocks that can be held in a portfolio. Each stock symbol is interned to a dense
+ * integer id in the range [0, size), which is used to index the holdings of the portfolios.
+ *
+ * <p>
+ * By default, the universe is made of "item1" to "item30", mapped to ids 0 to 29. It can be
+ * replaced upon startup, before any portfolio is created, with generated symbols of the same form
+ * or with the symbols listed in a file. The symbols are resolved through an open-addressing table,
+ * with no allocation, so that a symbol can be interned once upon decoding of a request and handled
+ * by id afterwards.
+ */
+public final class StockUniverse {
+
+  /**
+   * The max number of stocks, as the stock ids are stored as unsigned shorts.
+   */
+  public static final int MAX_SIZE = 0xFFFF;
+
+  private static final String PREFIX = "item";
+
+  private static final int DEFAULT_SIZE = 30;
+
+  private static Logger log = LoggerFactory.getLogger(StockUniverse.class);
+
+  private static volatile Table table = new Table(generate(DEFAULT_SIZE));
+
+  private StockUniverse() {}
+
+  /**
+   * Replaces the universe with the symbols from "item1" to "item&lt;size&gt;".
+   */
+  public static void configure(int size) {
+    configure(generate(size));
+    log.info("Stock universe: {}1 to {}{}", PREFIX, PREFIX, size);
+  }
+
+  /**
+   * Replaces the universe with the symbols listed in the provided file, one per line; blank lines
+   * and lines starting with '#' are skipped. The ids follow the order of the file.
+   */
+  public static void load(Path file) {
+    List<String> symbols = new ArrayList<>();
+    try {
+      for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        String symbol = line.trim();
+        if (!symbol.isEmpty() && !symbol.startsWith("#")) {
+          symbols.add(symbol);
+        }
+      }
+    } catch (IOException e) {
+      log.error("Error while reading the stock universe from [{}]", file);
+      throw new UncheckedIOException(e);
+    }
+    configure(symbols.toArray(new String[0]));
+    log.info("Stock universe: {} symbols from [{}]", symbols.size(), file);
+  }
+
+  private static void configure(String[] symbols) {
+    table = new Table(symbols);
+  }
+
+  private static String[] generate(int size) {
+    String[] symbols = new String[size];
+    for (int i = 0; i < size; i++) {
+      symbols[i] = PREFIX + (i + 1);
+    }
+    return symbols;
+  }
+
+  /**
+   * Returns the number of stocks.
+   */
+  public static int size() {
+    return table.symbols.length;
+  }
+
+  /**
+   * Returns the interned symbol of the provided stock id.
+   */
+  public static String symbol(int stockId) {
+    return table.symbols[stockId];
+  }
+
+  /**
+   * Tells whether the provided id belongs to a stock.
+   */
+  public static boolean isValid(int stockId) {
+    return stockId >= 0 && stockId < table.symbols.length;
+  }
+
+  /**
+   * Returns the id of the provided stock symbol, or -1 if the symbol is not a valid one.
+   */
+  public static int idOf(String stock) {
+    return stock != null ? table.idOf(stock) : -1;
+  }
+
+  /**
+   * Associates the symbols with their ids through linear probing on a power-of-2 table, kept at
+   * most half full.
+   */
+  private static final class Table {
+
+    /**
+     * The interned symbols, indexed by stock id.
+     */
+    final String[] symbols;
+
+    final String[] keys;
+
+    final int[] ids;
+
+    final int mask;
+
+    Table(String[] symbols) {
+      if (symbols.length == 0 || symbols.length > MAX_SIZE) {
+        throw new IllegalArgumentException(
+            "The stock universe must hold from 1 to " + MAX_SIZE + " symbols");
+      }
+
+      this.symbols = new String[symbols.length];
+      int capacity = Integer.highestOneBit(symbols.length * 2 - 1) << 1;
+      keys = new String[capacity];
+      ids = new int[capacity];
+      mask = capacity - 1;
+
+      for (int id = 0; id < symbols.length; id++) {
+        String symbol = symbols[id].intern();
+        if (idOf(symbol) != -1) {
+          throw new IllegalArgumentException("Duplicated stock symbol: " + symbol);
+        }
+        this.symbols[id] = symbol;
+        int slot = slotOf(symbol);
+        while (keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = symbol;
+        ids[slot] = id;
+      }
+    }
+
+    int idOf(String stock) {
+      for (int slot = slotOf(stock); keys[slot] != null; slot = (slot + 1) & mask) {
+        if (keys[slot] == stock || keys[slot].equals(stock)) {
+          return ids[slot];
+        }
+      }
+      return -1;
+    }
+
+    private int slotOf(String stock) {
+      int h = stock.hashCode() * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+}
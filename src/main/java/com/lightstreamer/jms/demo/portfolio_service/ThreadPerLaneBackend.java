@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each lane on its own platform thread, which is released after a period of inactivity. The
+ * number of threads grows with the number of active lanes, hence this backend only suits a limited
+ * number of lanes.
+ */
+final class ThreadPerLaneBackend implements ExecutionBackend {
+
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private final ThreadFactory threadFactory;
+
+  ThreadPerLaneBackend(String threadPrefix) {
+    threadFactory = new NamedThreadFactory(threadPrefix, false);
+  }
+
+  @Override
+  public Executor newLaneExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Override
+  public String toString() {
+    return "a platform thread per lane";
+  }
+}
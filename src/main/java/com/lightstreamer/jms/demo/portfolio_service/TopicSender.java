@@ -14,11 +14,16 @@
  */
 package com.lightstreamer.jms.demo.portfolio_service;
 
-import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.jms.JMSException;
+import javax.jms.Message;
 import javax.jms.MessageProducer;
-import javax.jms.ObjectMessage;
 import javax.jms.Session;
 import javax.jms.Topic;
 import javax.naming.InitialContext;
@@ -27,16 +32,53 @@ import javax.naming.NamingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessage;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessageCodec;
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioValuationMessage;
+
+/**
+ * Publishes the portfolio messages on the JMS topic through a pool of sessions. The messages are
+ * sharded on the sessions by portfolio id, so that the messages of the same portfolio are sent in
+ * order, while the messages of different portfolios can be sent in parallel.
+ *
+ * <p>
+ * In case of batches, the messages of the current transaction are kept until it is committed: if
+ * either a send or the commit fails, the transaction is rolled back and its messages are sent again
+ * in a new one, once. The messages that cannot be published anyway are counted as lost.
+ */
 public class TopicSender {
 
   private static Logger log = LoggerFactory.getLogger(TopicSender.class);
 
-  private final Session session;
+  private final Shard[] shards;
+
+  private final PortfolioMessageCodec codec;
 
-  private final MessageProducer producer;
+  /**
+   * The max number of messages sent in a single transaction; 0 if the sessions are not transacted.
+   */
+  private final int batchSize;
 
-  public TopicSender(InitialContext jndiContext, Session session, String topicName) {
-    this.session = session;
+  /**
+   * Counts the messages that could not be published.
+   */
+  private final LongAdder lostMessages;
+
+  public TopicSender(InitialContext jndiContext, Session[] sessions, String topicName,
+      PortfolioMessageCodec codec, LongAdder lostMessages) {
+    this(jndiContext, sessions, topicName, codec, lostMessages, 0, 0);
+  }
+
+  /**
+   * Creates a TopicSender which sends the messages in batches, on the provided transacted sessions.
+   * Each transaction is committed as soon as it holds <code>batchSize</code> messages, or anyway
+   * every <code>batchInterval</code> milliseconds.
+   */
+  public TopicSender(InitialContext jndiContext, Session[] sessions, String topicName,
+      PortfolioMessageCodec codec, LongAdder lostMessages, int batchSize, long batchInterval) {
+    this.codec = codec;
+    this.batchSize = batchSize;
+    this.lostMessages = lostMessages;
 
     // Find our destination
     log.info("Looking up topic [{}]...", topicName);
@@ -46,12 +88,30 @@ public class TopicSender {
         destination = (Topic) jndiContext.lookup(topicName);
       } catch (NamingException ne) {
         // In case of dynamic destinations
-        destination = session.createTopic(topicName);
+        destination = sessions[0].createTopic(topicName);
+      }
+
+      // Get a MessageProducer from each Session
+      shards = new Shard[sessions.length];
+      for (int i = 0; i < sessions.length; i++) {
+        if (batchSize > 0 && !sessions[i].getTransacted()) {
+          throw new IllegalArgumentException("Batches can be sent on transacted sessions only");
+        }
+        shards[i] = new Shard(sessions[i], sessions[i].createProducer(destination), batchSize);
       }
 
-      // Get the MessageProducer from our Session
-      producer = session.createProducer(destination);
-      log.debug("TopicSender created");
+      if (batchSize > 0) {
+        // Commit periodically the messages which do not fill a batch
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread thread = new Thread(r, "TopicSender-Committer");
+          thread.setDaemon(true);
+          return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::commitAll, batchInterval, batchInterval,
+            TimeUnit.MILLISECONDS);
+        log.info("Sending messages in batches of {} or every {} ms", batchSize, batchInterval);
+      }
+      log.debug("TopicSender created with {} sessions", shards.length);
     } catch (Exception e) {
       log.error("Error while creating the TopicSender");
       throw new RuntimeException(e);
@@ -59,22 +119,151 @@ public class TopicSender {
   }
 
   /**
-   * Sends an object message.
+   * Sends a portfolio message, encoded through the configured codec, on the session bound to its
+   * portfolio.
    */
-  public synchronized void sendObjectMessage(Serializable obj) {
-    try {
-      // Get a message
-      ObjectMessage objMessage = session.createObjectMessage();
+  public void sendMessage(PortfolioMessage message) {
+    send(message.portfolioId, message, session -> codec.encode(session, message));
+  }
 
-      // Fill it with obj (our message to be sent)
-      objMessage.setObject(obj);
+  /**
+   * Sends a portfolio valuation, encoded through the configured codec, on the session bound to its
+   * portfolio.
+   */
+  public void sendValuation(PortfolioValuationMessage valuation) {
+    send(valuation.portfolioId, valuation, session -> codec.encode(session, valuation));
+  }
 
-      log.debug("Sending message object {}", obj);
+  private void send(String portfolioId, Object message, Encoder encoder) {
+    Shard shard = shards[(portfolioId.hashCode() & Integer.MAX_VALUE) % shards.length];
+    synchronized (shard.session) {
+      Message jmsMessage;
+      try {
+        // Get a message filled with our message to be sent
+        jmsMessage = encoder.encode(shard.session);
+      } catch (JMSException e) {
+        log.error("Portfolio: unable to encode message", e);
+        lostMessages.increment();
+        return;
+      }
 
-      // Send to JMS
-      producer.send(objMessage);
-    } catch (JMSException e) {
-      log.warn("Portfolio: unable to send message", e);
+      log.debug("Sending message {}", message);
+      if (batchSize == 0) {
+        try {
+          // Send to JMS
+          shard.producer.send(jmsMessage);
+        } catch (JMSException e) {
+          log.error("Portfolio: unable to send message", e);
+          lostMessages.increment();
+        }
+        return;
+      }
+
+      // In case of batches, keep the message until the transaction is committed
+      shard.batch.add(jmsMessage);
+      try {
+        shard.producer.send(jmsMessage);
+      } catch (JMSException e) {
+        // The transaction may be unusable; start it again
+        shard.retry(e, lostMessages);
+        return;
+      }
+
+      // Commit the transaction if full
+      if (shard.batch.size() >= batchSize) {
+        shard.commit(lostMessages);
+      }
+    }
+  }
+
+  /**
+   * Commits the current transaction of each session, if any message has been sent in it; meant for
+   * the transacted sessions only. Besides the periodic commits, it can be invoked at the end of a
+   * burst of messages, so that they do not wait for the batch interval.
+   */
+  public void commitAll() {
+    for (Shard shard : shards) {
+      synchronized (shard.session) {
+        shard.commit(lostMessages);
+      }
+    }
+  }
+
+  /**
+   * Creates the JMS message to be sent on the provided session.
+   */
+  @FunctionalInterface
+  private interface Encoder {
+
+    Message encode(Session session) throws JMSException;
+  }
+
+  /**
+   * A session, with its producer, in charge of a subset of the portfolios. All accesses are
+   * synchronized on the session, which may be shared with the {@link Responder}.
+   */
+  private static final class Shard {
+
+    final Session session;
+
+    final MessageProducer producer;
+
+    /**
+     * The messages sent in the current transaction, kept to be sent again if it fails.
+     */
+    final List<Message> batch;
+
+    Shard(Session session, MessageProducer producer, int batchSize) {
+      this.session = session;
+      this.producer = producer;
+      this.batch = new ArrayList<>(batchSize);
+    }
+
+    /**
+     * Commits the current transaction, if any message has been sent in it; upon a failure, sends
+     * its messages again in a new transaction.
+     */
+    void commit(LongAdder lostMessages) {
+      if (batch.isEmpty()) {
+        return;
+      }
+
+      try {
+        session.commit();
+        log.debug("Committed {} messages", batch.size());
+        batch.clear();
+      } catch (JMSException e) {
+        retry(e, lostMessages);
+      }
+    }
+
+    /**
+     * Rolls back the current transaction, which failed for the provided reason, then sends its
+     * messages again in a new transaction and commits it; if this fails too, the messages are
+     * rolled back and counted as lost.
+     */
+    void retry(JMSException cause, LongAdder lostMessages) {
+      log.warn("Portfolio: transaction of {} messages failed; sending them again",
+          batch.size(), cause);
+      try {
+        session.rollback();
+        for (Message message : batch) {
+          producer.send(message);
+        }
+        session.commit();
+        log.info("Sent again {} messages", batch.size());
+      } catch (JMSException e) {
+        log.error("Portfolio: unable to send again " + batch.size() + " messages; they are lost",
+            e);
+        lostMessages.add(batch.size());
+        try {
+          session.rollback();
+        } catch (JMSException re) {
+          log.warn("Portfolio: unable to roll back the failed transaction", re);
+        }
+      } finally {
+        batch.clear();
+      }
     }
   }
 
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.config.Configuration;
+
+/**
+ * Generates a continuous flow of buy and sell orders on the portfolios, so that the dispatching and
+ * publishing paths can be exercised with no external client. The orders are issued directly on the
+ * portfolios by a pool of threads, at a configured overall rate, possibly multiplied during periodic
+ * bursts.
+ *
+ * <p>
+ * The portfolios and the stocks are picked either uniformly or according to a Zipf distribution,
+ * in which case the first ones are the hottest. Each thread draws from its own random generator,
+ * derived from the configured seed, so that the sequence of orders of each thread is reproducible;
+ * the interleaving of the threads is not.
+ */
+final class TradeFlowGenerator {
+
+  private static Logger log = LoggerFactory.getLogger(TradeFlowGenerator.class);
+
+  /**
+   * The max quantity of a single order.
+   */
+  private static final int MAX_ORDER_QTY = 100;
+
+  /**
+   * How far behind its schedule a thread can fall before the missed orders are given up.
+   */
+  private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final Function<String, Portfolio> portfolios;
+
+  private final String[] portfolioIds;
+
+  private final Distribution portfolioDistribution;
+
+  private final Distribution stockDistribution;
+
+  private final double rate;
+
+  private final int threads;
+
+  private final long seed;
+
+  private final double burstFactor;
+
+  private final long burstDurationNanos;
+
+  private final long burstIntervalNanos;
+
+  private final LongAdder trades = new LongAdder();
+
+  private final LongAdder rejections = new LongAdder();
+
+  /**
+   * Prepares the generator for the portfolios from 1 to <code>portfolioNum</code>, which are looked
+   * up through the provided function.
+   */
+  TradeFlowGenerator(Configuration config, Function<String, Portfolio> portfolios) {
+    this.portfolios = portfolios;
+    portfolioIds = new String[config.portfolioNum];
+    for (int i = 0; i < portfolioIds.length; i++) {
+      portfolioIds[i] = config.portfolioIdPrefix + (i + 1);
+    }
+
+    portfolioDistribution = Distribution.forName(config.tradePortfolioDistribution,
+        portfolioIds.length, config.tradeZipfExponent);
+    stockDistribution = Distribution.forName(config.tradeStockDistribution,
+        StockUniverse.size(), config.tradeZipfExponent);
+    rate = config.tradeRate;
+    threads = config.tradeThreads;
+    seed = config.tradeSeed;
+    burstFactor = config.tradeBurstFactor;
+    burstDurationNanos = TimeUnit.MILLISECONDS.toNanos(config.tradeBurstDuration);
+    burstIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.tradeBurstInterval);
+  }
+
+  /**
+   * Starts the generating threads.
+   */
+  void start() {
+    log.info("Generating {} orders/s on {} portfolios from {} threads (portfolios: {}, stocks: {},"
+        + " seed {})", rate, portfolioIds.length, threads, portfolioDistribution,
+        stockDistribution, seed);
+    if (burstFactor > 1) {
+      log.info("Multiplying the order rate by {} for {} ms every {} ms", burstFactor,
+          TimeUnit.NANOSECONDS.toMillis(burstDurationNanos),
+          TimeUnit.NANOSECONDS.toMillis(burstIntervalNanos));
+    }
+
+    NamedThreadFactory threadFactory = new NamedThreadFactory("Portfolio-Trader", true);
+    SplittableRandom seeds = new SplittableRandom(seed);
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      SplittableRandom random = seeds.split();
+      threadFactory.newThread(() -> generate(random, start)).start();
+    }
+  }
+
+  /**
+   * Returns the number of orders issued so far.
+   */
+  long trades() {
+    return trades.sum();
+  }
+
+  /**
+   * Returns the number of orders refused because of the overload of the portfolios.
+   */
+  long rejections() {
+    return rejections.sum();
+  }
+
+  private void generate(SplittableRandom random, long start) {
+    // Each thread takes its share of the rate
+    long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate);
+    long next = start;
+
+    while (!Thread.currentThread().isInterrupted()) {
+      long now = System.nanoTime();
+      if (next - now > 0) {
+        LockSupport.parkNanos(next - now);
+        continue;
+      }
+      if (now - next > MAX_LAG_NANOS) {
+        // Give up the orders missed while the portfolios were slowed down, rather than flooding
+        next = now;
+      }
+
+      trade(random);
+      next += isBursting(now - start) ? (long) (intervalNanos / burstFactor) : intervalNanos;
+    }
+  }
+
+  private boolean isBursting(long elapsedNanos) {
+    return burstFactor > 1 && elapsedNanos % burstIntervalNanos < burstDurationNanos;
+  }
+
+  private void trade(SplittableRandom random) {
+    Portfolio portfolio = portfolios.apply(portfolioIds[portfolioDistribution.next(random)]);
+    int stockId = stockDistribution.next(random);
+    long qty = 1 + random.nextInt(MAX_ORDER_QTY);
+    try {
+      if (random.nextBoolean()) {
+        portfolio.buy(stockId, qty);
+      } else {
+        portfolio.sell(stockId, qty);
+      }
+      trades.increment();
+    } catch (RejectedExecutionException e) {
+      rejections.increment();
+    }
+  }
+
+  /**
+   * Draws indexes from 0 (included) to a max (excluded).
+   */
+  private abstract static class Distribution {
+
+    abstract int next(SplittableRandom random);
+
+    /**
+     * Creates the distribution with the provided configuration name: "uniform" or "zipf".
+     */
+    static Distribution forName(String name, int size, double exponent) {
+      switch (name) {
+        case "uniform":
+          return new Distribution() {
+            @Override
+            int next(SplittableRandom random) {
+              return random.nextInt(size);
+            }
+
+            @Override
+            public String toString() {
+              return "uniform";
+            }
+          };
+
+        case "zipf":
+          return new ZipfDistribution(size, exponent);
+
+        default:
+          throw new IllegalArgumentException("Unknown trade distribution: " + name);
+      }
+    }
+  }
+
+  /**
+   * Draws the index <i>k</i> with a probability proportional to 1 / (k + 1)^exponent, through a
+   * binary search on the precomputed cumulative probabilities.
+   */
+  private static final class ZipfDistribution extends Distribution {
+
+    private final double[] cumulative;
+
+    private final double exponent;
+
+    ZipfDistribution(int size, double exponent) {
+      this.exponent = exponent;
+      cumulative = new double[size];
+      double sum = 0;
+      for (int k = 0; k < size; k++) {
+        sum += 1 / Math.pow(k + 1, exponent);
+        cumulative[k] = sum;
+      }
+      for (int k = 0; k < size; k++) {
+        cumulative[k] /= sum;
+      }
+    }
+
+    @Override
+    int next(SplittableRandom random) {
+      int index = Arrays.binarySearch(cumulative, random.nextDouble());
+      // Not found (the usual case) yields the insertion point, that is the first greater value
+      index = index >= 0 ? index : -index - 1;
+      return Math.min(index, cumulative.length - 1);
+    }
+
+    @Override
+    public String toString() {
+      return "zipf with exponent " + exponent;
+    }
+  }
+}
@@ -0,0 +1,574 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable journal of the changes applied to the portfolios. Each record carries the new absolute
+ * quantity of a stock in a portfolio, so that replaying a record more than once is harmless.
+ *
+ * <p>
+ * The records are appended to an in-memory buffer, which is written to the file channel and forced
+ * to disk by a background thread, either periodically or as soon as the buffer is half full (group
+ * commit): the appenders never wait for the disk, unless the buffer fills up. Hence, the changes of
+ * the last sync interval may be lost in case of a crash. In group commit mode, instead, each append
+ * requests a sync and returns only once its record is forced to disk, along with the records
+ * appended meanwhile by the other threads, so that no returned append can be lost.
+ *
+ * <p>
+ * Record layout: portfolio id length (unsigned short), portfolio id (UTF-8), stock symbol length
+ * (unsigned short), stock symbol (UTF-8), quantity (long), CRC32 of the previous fields (int). The
+ * changes of a batch are framed as a single record, so that they are replayed either all or none:
+ * portfolio id length, portfolio id, 0 (unsigned short, in place of the stock symbol length), number
+ * of changes (unsigned short), then stock symbol length, stock symbol and quantity of each change,
+ * and the CRC32 of the previous fields. A torn or corrupted record at the end of the file is
+ * discarded upon opening.
+ */
+public class TradeJournal implements AutoCloseable {
+
+  /**
+   * Receives the records of the journal upon replay.
+   */
+  @FunctionalInterface
+  public interface RecordHandler {
+
+    void record(String portfolioId, String stock, long qty);
+  }
+
+  private static Logger log = LoggerFactory.getLogger(TradeJournal.class);
+
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+  private final Path file;
+
+  private final FileChannel channel;
+
+  /**
+   * The UTF-8 encoded stock symbols, indexed by stock id.
+   */
+  private final byte[][] symbols;
+
+  private final CRC32 crc = new CRC32();
+
+  private final ScheduledExecutorService syncer;
+
+  /**
+   * Serializes the syncs.
+   */
+  private final Object syncLock = new Object();
+
+  /**
+   * The buffer to which the records are appended; guarded by this.
+   */
+  private ByteBuffer active = ByteBuffer.allocate(BUFFER_SIZE);
+
+  /**
+   * The buffer ready to replace the active one, or null while it is being written; guarded by this.
+   */
+  private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+
+  /**
+   * The number of bytes written to the file and forced to disk; guarded by this.
+   */
+  private long written;
+
+  /**
+   * The buffer taken from the appenders, whose records are not yet forced to disk, or null; kept
+   * upon a failure, so that the next sync retries it before any later record. Accessed under the
+   * sync lock only.
+   */
+  private ByteBuffer unsynced;
+
+  /**
+   * The number of bytes in the buffer not yet forced to disk; guarded by this.
+   */
+  private long unsyncedLength;
+
+  /**
+   * The error of the latest sync, if it failed; guarded by this.
+   */
+  private IOException failure;
+
+  /**
+   * Tells whether an early sync has been requested because the buffer is filling up; guarded by
+   * this.
+   */
+  private boolean syncRequested;
+
+  /**
+   * The number of appenders waiting for their records to be forced, in group commit mode; guarded
+   * by this.
+   */
+  private int syncWaiters;
+
+  private boolean closed;
+
+  private final boolean groupCommit;
+
+  private final Thread shutdownHook;
+
+  private TradeJournal(Path file, FileChannel channel, long validLength, long syncIntervalMillis,
+      boolean groupCommit) {
+    this.file = file;
+    this.channel = channel;
+    this.written = validLength;
+    this.groupCommit = groupCommit;
+
+    symbols = new byte[StockUniverse.size()][];
+    for (int i = 0; i < symbols.length; i++) {
+      symbols[i] = StockUniverse.symbol(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Portfolio-Journal");
+      thread.setDaemon(true);
+      return thread;
+    });
+    syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+        TimeUnit.MILLISECONDS);
+
+    // Do not lose the buffered records upon a regular shutdown
+    shutdownHook = new Thread(this::close, "Portfolio-Journal-Shutdown");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * Opens the journal, creating the file if needed. The records already in the file, from the
+   * provided position on, are replayed to the provided handler before any new record can be
+   * appended.
+   *
+   * @param from the position of the first record to replay, as returned by {@link #position()};
+   *        if beyond the end of the file, nothing is replayed.
+   * @param groupCommit whether each append has to wait until its record is forced to disk.
+   */
+  public static TradeJournal open(Path file, long from, long syncIntervalMillis,
+      boolean groupCommit, RecordHandler handler) {
+    try {
+      FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+      if (from > channel.size()) {
+        // The journal may have been removed, while the state it recorded is already recovered
+        log.warn("Journal [{}] shorter than expected; nothing to replay", file);
+        from = channel.size();
+      }
+
+      long start = System.nanoTime();
+      long[] replayed = new long[1];
+      long validLength = replay(channel, from, (portfolioId, stock, qty) -> {
+        handler.record(portfolioId, stock, qty);
+        replayed[0]++;
+      });
+      log.info("Replayed {} journal records from [{}] in {} ms", replayed[0], file,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+      if (validLength < channel.size()) {
+        log.warn("Discarding {} bytes of torn or corrupted records at the end of [{}]",
+            channel.size() - validLength, file);
+        channel.truncate(validLength);
+      }
+      channel.position(validLength);
+
+      if (groupCommit) {
+        log.info("Journaling portfolio changes on [{}], synced upon each append", file);
+      } else {
+        log.info("Journaling portfolio changes on [{}], synced every {} ms", file,
+            syncIntervalMillis);
+      }
+      return new TradeJournal(file, channel, validLength, syncIntervalMillis, groupCommit);
+    } catch (IOException e) {
+      log.error("Error while opening the journal [{}]", file);
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads the records from the provided position on, and returns the position following the last
+   * valid record.
+   */
+  static long replay(FileChannel channel, long from, RecordHandler handler) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    CRC32 crc = new CRC32();
+    long position = from;
+    long readPosition = from;
+
+    while (true) {
+      int read = channel.read(buffer, readPosition);
+      if (read <= 0) {
+        // Anything left in the buffer is an incomplete record
+        return position;
+      }
+      readPosition += read;
+      buffer.flip();
+
+      while (true) {
+        int start = buffer.position();
+        if (buffer.remaining() < 2) {
+          break;
+        }
+        int idLength = buffer.getShort(start) & 0xFFFF;
+        if (buffer.remaining() < 2 + idLength + 2) {
+          break;
+        }
+        int stockLength = buffer.getShort(start + 2 + idLength) & 0xFFFF;
+        int changes = 1;
+        int changesStart = start + 2 + idLength;
+        if (stockLength == 0) {
+          // A batch, whose changes follow their number
+          if (buffer.remaining() < 2 + idLength + 4) {
+            break;
+          }
+          changes = buffer.getShort(changesStart + 2) & 0xFFFF;
+          changesStart += 4;
+        }
+
+        // Find the end of the changes, unless the record is incomplete
+        int end = changesStart;
+        for (int c = 0; c < changes && end <= buffer.limit() - 2; c++) {
+          end += 2 + (buffer.getShort(end) & 0xFFFF) + 8;
+        }
+        if (end > buffer.limit() - 4) {
+          break;
+        }
+        int length = end - start;
+
+        crc.reset();
+        crc.update(buffer.array(), start, length);
+        if ((int) crc.getValue() != buffer.getInt(start + length)) {
+          return position;
+        }
+
+        String portfolioId =
+            new String(buffer.array(), start + 2, idLength, StandardCharsets.UTF_8);
+        for (int c = 0, at = changesStart; c < changes; c++) {
+          stockLength = buffer.getShort(at) & 0xFFFF;
+          String stock = new String(buffer.array(), at + 2, stockLength, StandardCharsets.UTF_8);
+          at += 2 + stockLength;
+          handler.record(portfolioId, stock, buffer.getLong(at));
+          at += 8;
+        }
+
+        buffer.position(start + length + 4);
+        position += length + 4;
+      }
+
+      if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+        // A single record cannot exceed the buffer, hence the data are corrupted
+        return position;
+      }
+      buffer.compact();
+    }
+  }
+
+  /**
+   * Appends a record, carrying the new quantity of a stock in a portfolio. In group commit mode,
+   * waits until the record is forced to disk.
+   *
+   * @param portfolioId the UTF-8 encoded portfolio id.
+   */
+  public void append(byte[] portfolioId, int stockId, long qty) {
+    checkId(portfolioId);
+    byte[] stock = symbols[stockId];
+    int length = 2 + portfolioId.length + 2 + stock.length + 8;
+
+    synchronized (this) {
+      int start = reserve(length);
+      active.putShort((short) portfolioId.length)
+        .put(portfolioId)
+        .putShort((short) stock.length)
+        .put(stock)
+        .putLong(qty);
+      seal(start, length);
+    }
+  }
+
+  /**
+   * Appends a single record carrying the new quantities of many stocks in a portfolio, changed
+   * together by a batch, so that they are replayed either all or none. In group commit mode, waits
+   * until the record is forced to disk.
+   *
+   * @param portfolioId the UTF-8 encoded portfolio id.
+   * @param offset the position of the first change in the arrays.
+   * @param size the number of changes.
+   * @throws IllegalArgumentException if the record would not fit in the journal buffer; see
+   *         {@link #fitsBatch}.
+   */
+  public void appendBatch(byte[] portfolioId, int[] stockIds, long[] qtys, int offset, int size) {
+    checkId(portfolioId);
+    int length = batchLength(portfolioId, stockIds, offset, size);
+    if (size > MAX_STRING_LENGTH || length + 4 > BUFFER_SIZE) {
+      throw new IllegalArgumentException("Batch too large to be journaled");
+    }
+
+    synchronized (this) {
+      int start = reserve(length);
+      active.putShort((short) portfolioId.length)
+        .put(portfolioId)
+        .putShort((short) 0)
+        .putShort((short) size);
+      for (int i = offset; i < offset + size; i++) {
+        byte[] stock = symbols[stockIds[i]];
+        active.putShort((short) stock.length)
+          .put(stock)
+          .putLong(qtys[i]);
+      }
+      seal(start, length);
+    }
+  }
+
+  /**
+   * Tells whether the changes of the provided stocks in a portfolio can be appended as a single
+   * record by {@link #appendBatch}.
+   */
+  public boolean fitsBatch(byte[] portfolioId, int[] stockIds, int size) {
+    return size <= MAX_STRING_LENGTH
+        && batchLength(portfolioId, stockIds, 0, size) + 4 <= BUFFER_SIZE;
+  }
+
+  private static void checkId(byte[] portfolioId) {
+    if (portfolioId.length > MAX_STRING_LENGTH) {
+      throw new IllegalArgumentException("Portfolio id too long to be journaled");
+    }
+  }
+
+  /**
+   * Returns the length of a batch record, excluding the CRC.
+   */
+  private int batchLength(byte[] portfolioId, int[] stockIds, int offset, int size) {
+    int length = 2 + portfolioId.length + 2 + 2;
+    for (int i = offset; i < offset + size; i++) {
+      length += 2 + symbols[stockIds[i]].length + 8;
+    }
+    return length;
+  }
+
+  /**
+   * Waits until the active buffer has room for a record of the provided length, plus its CRC, and
+   * returns the position of the record in the buffer; invoked while holding the lock on this.
+   */
+  private int reserve(int length) {
+    while (!closed && active.remaining() < length + 4) {
+      if (failure != null) {
+        // The buffered records cannot reach the disk; let the appender know
+        throw new UncheckedIOException("Journal not writable", failure);
+      }
+
+      // Wait for the background thread to swap the buffers
+      requestSync();
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the journal", e);
+      }
+    }
+    if (closed) {
+      throw new IllegalStateException("Journal closed");
+    }
+    return active.position();
+  }
+
+  /**
+   * Appends the CRC of the record just written to the active buffer; invoked while holding the
+   * lock on this.
+   */
+  private void seal(int start, int length) {
+    crc.reset();
+    crc.update(active.array(), start, length);
+    active.putInt((int) crc.getValue());
+
+    if (groupCommit) {
+      awaitSynced(written + unsyncedLength + active.position());
+    } else if (active.position() >= BUFFER_SIZE / 2) {
+      requestSync();
+    }
+  }
+
+  /**
+   * Requests a sync and waits until the records up to the provided position are forced to disk;
+   * invoked while holding the lock on this, in group commit mode. The records appended while a sync
+   * is in progress are forced together by the next one.
+   *
+   * @throws UncheckedIOException if the sync fails; the records are kept, and retried by the next
+   *         sync.
+   */
+  private void awaitSynced(long end) {
+    boolean interrupted = false;
+    requestSync();
+    while (written < end) {
+      if (failure != null) {
+        throw new UncheckedIOException("Journal not synced", failure);
+      }
+      if (closed) {
+        throw new IllegalStateException("Journal closed");
+      }
+      syncWaiters++;
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // The record is already appended; let it be forced anyway
+        interrupted = true;
+      } finally {
+        syncWaiters--;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns the position that the next appended record will take in the journal.
+   */
+  public synchronized long position() {
+    return written + unsyncedLength + active.position();
+  }
+
+  public Path file() {
+    return file;
+  }
+
+  private void requestSync() {
+    // Invoked while holding the lock on this
+    if (!syncRequested && !closed) {
+      syncRequested = true;
+      syncer.execute(this::syncQuietly);
+    }
+  }
+
+  /**
+   * Writes all the records appended so far to the file and forces them to disk. Upon a failure,
+   * the records are kept and retried by the next sync; meanwhile, the appenders can fill the other
+   * buffer, after which they get the error.
+   */
+  public void sync() throws IOException {
+    synchronized (syncLock) {
+      synchronized (this) {
+        syncRequested = false;
+      }
+
+      // Retry the records left by a failed sync first, to preserve their order
+      if (unsynced != null) {
+        flush();
+      }
+
+      synchronized (this) {
+        if (active.position() == 0) {
+          return;
+        }
+        unsynced = active;
+        unsyncedLength = active.position();
+        active = spare;
+        spare = null;
+
+        // Let the appenders waiting for room go on
+        notifyAll();
+      }
+      unsynced.flip();
+      flush();
+    }
+  }
+
+  /**
+   * Writes the remaining records of the unsynced buffer and forces them to disk; only then are
+   * they accounted for as written, and the buffer is made available again.
+   */
+  private void flush() throws IOException {
+    // Invoked while holding the sync lock
+    try {
+      while (unsynced.hasRemaining()) {
+        channel.write(unsynced);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      synchronized (this) {
+        failure = e;
+
+        // Let the appenders waiting for room know
+        notifyAll();
+      }
+      throw e;
+    }
+
+    unsynced.clear();
+    synchronized (this) {
+      written += unsyncedLength;
+      unsyncedLength = 0;
+      spare = unsynced;
+      failure = null;
+
+      // Let the appenders waiting for their records to be forced go on
+      if (syncWaiters > 0) {
+        notifyAll();
+      }
+    }
+    unsynced = null;
+  }
+
+  private void syncQuietly() {
+    try {
+      sync();
+    } catch (IOException | RuntimeException e) {
+      log.error("Error while syncing the journal [{}]", file, e);
+    }
+  }
+
+  /**
+   * Syncs the pending records and closes the file; further appends are refused.
+   */
+  @Override
+  public void close() {
+    synchronized (syncLock) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+      }
+      syncQuietly();
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+    }
+    syncer.shutdown();
+    try {
+      Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    } catch (IllegalStateException e) {
+      // Closing from the hook itself, or upon another shutdown
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.warn("Error while closing the journal [{}]", file, e);
+    }
+  }
+}
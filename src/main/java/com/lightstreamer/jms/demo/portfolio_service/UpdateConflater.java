@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioMessage;
+
+/**
+ * Conflates the portfolio updates before they get published. Only the newest quantity for each
+ * (portfolio, stock) pair is kept, and the pending updates are forwarded to the sink either
+ * periodically or as soon as their number reaches a threshold, whichever comes first.
+ *
+ * <p>
+ * Intermediate quantities may be skipped, but the last update for each pair is always forwarded,
+ * and the flushes are forwarded in order, so that the final state seen by the clients is correct.
+ */
+public class UpdateConflater {
+
+  private static Logger log = LoggerFactory.getLogger(UpdateConflater.class);
+
+  private final Consumer<PortfolioMessage> sink;
+
+  private final int maxPending;
+
+  /**
+   * Serializes the flushes, so that an older update cannot overtake a newer one for the same pair.
+   */
+  private final Object flushLock = new Object();
+
+  /**
+   * The pending updates, in order of first arrival; guarded by this.
+   */
+  private LinkedHashMap<Key, PortfolioMessage> pending = new LinkedHashMap<>();
+
+  public UpdateConflater(Consumer<PortfolioMessage> sink, long intervalMillis, int maxPending) {
+    this.sink = sink;
+    this.maxPending = maxPending;
+
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Portfolio-Conflater");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis,
+        TimeUnit.MILLISECONDS);
+    log.info("Conflating updates every {} ms or {} pending updates", intervalMillis, maxPending);
+  }
+
+  /**
+   * Enqueues an update, replacing any pending update for the same portfolio and stock.
+   */
+  public void offer(PortfolioMessage update) {
+    boolean full;
+    synchronized (this) {
+      pending.put(new Key(update.portfolioId, update.key), update);
+      full = pending.size() >= maxPending;
+    }
+
+    if (full) {
+      flush();
+    }
+  }
+
+  /**
+   * Forwards all the pending updates to the sink.
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      LinkedHashMap<Key, PortfolioMessage> toSend;
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        toSend = pending;
+        pending = new LinkedHashMap<>();
+      }
+
+      log.debug("Flushing {} conflated updates", toSend.size());
+      for (PortfolioMessage update : toSend.values()) {
+        try {
+          sink.accept(update);
+        } catch (RuntimeException e) {
+          log.warn("Exception caught while flushing conflated updates", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Identifies a (portfolio, stock) pair.
+   */
+  private static final class Key {
+
+    private final String portfolioId;
+
+    private final String stock;
+
+    Key(String portfolioId, String stock) {
+      this.portfolioId = portfolioId;
+      this.stock = stock;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * portfolioId.hashCode() + stock.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return portfolioId.equals(other.portfolioId) && stock.equals(other.stock);
+    }
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lightstreamer.jms.demo.portfolio_service.message.PortfolioValuationMessage;
+
+/**
+ * Keeps the market value of each portfolio up to date, as the sum of the quantities of its stocks
+ * times their prices, and publishes the values which changed at a fixed interval.
+ *
+ * <p>
+ * The value is never recomputed from scratch: a position change adds the quantity delta times the
+ * price of the stock, and a price change adds the price delta times the quantity of each holder of
+ * the stock, which is found through a reverse index from the stocks to the portfolios holding them.
+ * Hence the cost of a price change depends on the holders of the stock only, and the cost of a
+ * position change is constant.
+ *
+ * <p>
+ * The position and price changes are handed over through a {@link RingBuffer} to a single thread,
+ * which owns all the state, hence no lock is needed. When the ring is full, the portfolios wait.
+ */
+final class ValuationEngine implements PositionObserver, PriceSource.Listener {
+
+  private static Logger log = LoggerFactory.getLogger(ValuationEngine.class);
+
+  /**
+   * The number of slots of the ring.
+   */
+  private static final int RING_SIZE = 1 << 14;
+
+  private static final int POSITION = 0;
+
+  private static final int PRICE = 1;
+
+  private static final int FLUSH = 2;
+
+  /**
+   * A position change, a price change or a request to publish, filled in place in the ring.
+   */
+  private static final class Event {
+
+    int type;
+
+    String portfolioId;
+
+    int stockId;
+
+    long value;
+  }
+
+  /**
+   * The value of a portfolio, in cents; accessed by the engine thread only.
+   */
+  private static final class Valuation {
+
+    final String portfolioId;
+
+    long value;
+
+    boolean dirty;
+
+    Valuation(String portfolioId) {
+      this.portfolioId = portfolioId;
+    }
+  }
+
+  private final RingBuffer<Event> events = new RingBuffer<>(RING_SIZE, Event::new);
+
+  private final PriceSource priceSource;
+
+  private final long publishIntervalMillis;
+
+  /**
+   * Sends the values which changed.
+   */
+  private final Consumer<PortfolioValuationMessage> sink;
+
+  // The state below is accessed by the engine thread only
+
+  private final Map<String, Valuation> valuations = new HashMap<>();
+
+  /**
+   * The price of each stock, in cents, indexed by stock id; 0 until known. Sized on the stock
+   * universe upon the first event, as the universe may be configured after the engine is created.
+   */
+  private long[] prices;
+
+  /**
+   * The quantity held by each portfolio holding a stock, indexed by stock id.
+   */
+  private List<Map<Valuation, long[]>> holders;
+
+  /**
+   * The valuations changed since the last publishing.
+   */
+  private final List<Valuation> dirty = new ArrayList<>();
+
+  /**
+   * @param priceSource provides the prices, once the engine is started.
+   * @param publishIntervalMillis the interval at which the values which changed are published.
+   * @param sink sends the values which changed, on the engine thread.
+   */
+  ValuationEngine(PriceSource priceSource, long publishIntervalMillis,
+      Consumer<PortfolioValuationMessage> sink) {
+    this.priceSource = priceSource;
+    this.publishIntervalMillis = publishIntervalMillis;
+    this.sink = sink;
+
+    // Start consuming at once, as the positions may be recovered before the engine is started
+    events.start("Portfolio-Valuation", (event, endOfBatch) -> onEvent(event));
+  }
+
+  /**
+   * Starts receiving the prices and publishing the values.
+   */
+  void start() {
+    priceSource.start(this);
+
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("Portfolio-Valuation-Timer", true));
+    scheduler.scheduleAtFixedRate(this::requestFlush, publishIntervalMillis,
+        publishIntervalMillis, TimeUnit.MILLISECONDS);
+    log.info("Publishing the portfolio values every {} ms", publishIntervalMillis);
+  }
+
+  @Override
+  public void positionChanged(String portfolioId, int stockId, long oldQty, long newQty) {
+    long sequence = events.next();
+    Event event = events.get(sequence);
+    event.type = POSITION;
+    event.portfolioId = portfolioId;
+    event.stockId = stockId;
+    event.value = newQty;
+    events.publish(sequence);
+  }
+
+  @Override
+  public void onPrice(String stock, long price) {
+    int stockId = StockUniverse.idOf(stock);
+    if (stockId == -1 || price < 0) {
+      log.debug("Price ignored for {}: {}", stock, price);
+      return;
+    }
+
+    long sequence = events.next();
+    Event event = events.get(sequence);
+    event.type = PRICE;
+    event.stockId = stockId;
+    event.value = price;
+    events.publish(sequence);
+  }
+
+  private void requestFlush() {
+    long sequence = events.next();
+    events.get(sequence).type = FLUSH;
+    events.publish(sequence);
+  }
+
+  private void onEvent(Event event) {
+    if (prices == null) {
+      prices = new long[StockUniverse.size()];
+      holders = new ArrayList<>(prices.length);
+      for (int i = 0; i < prices.length; i++) {
+        holders.add(new HashMap<>());
+      }
+    }
+
+    try {
+      switch (event.type) {
+        case POSITION:
+          changePosition(event.portfolioId, event.stockId, event.value);
+          break;
+
+        case PRICE:
+          changePrice(event.stockId, event.value);
+          break;
+
+        default:
+          flush();
+          break;
+      }
+    } finally {
+      event.portfolioId = null;
+    }
+  }
+
+  private void changePosition(String portfolioId, int stockId, long newQty) {
+    Valuation valuation = valuations.computeIfAbsent(portfolioId, Valuation::new);
+    Map<Valuation, long[]> stockHolders = holders.get(stockId);
+
+    // The quantity known here is taken as the old one, so that the deltas always add up
+    long[] qty = stockHolders.get(valuation);
+    long oldQty = qty != null ? qty[0] : 0;
+    if (newQty == oldQty) {
+      return;
+    }
+
+    if (newQty == 0) {
+      stockHolders.remove(valuation);
+    } else if (qty == null) {
+      stockHolders.put(valuation, new long[] {newQty});
+    } else {
+      qty[0] = newQty;
+    }
+    addValue(valuation, (newQty - oldQty) * prices[stockId]);
+  }
+
+  private void changePrice(int stockId, long newPrice) {
+    long delta = newPrice - prices[stockId];
+    if (delta == 0) {
+      return;
+    }
+
+    prices[stockId] = newPrice;
+    for (Map.Entry<Valuation, long[]> holder : holders.get(stockId).entrySet()) {
+      addValue(holder.getKey(), holder.getValue()[0] * delta);
+    }
+  }
+
+  private void addValue(Valuation valuation, long delta) {
+    if (delta == 0) {
+      return;
+    }
+
+    valuation.value += delta;
+    if (!valuation.dirty) {
+      valuation.dirty = true;
+      dirty.add(valuation);
+    }
+  }
+
+  private void flush() {
+    for (Valuation valuation : dirty) {
+      valuation.dirty = false;
+      try {
+        sink.accept(new PortfolioValuationMessage(valuation.portfolioId, valuation.value));
+      } catch (RuntimeException e) {
+        log.warn("Error while publishing the value of {}", valuation.portfolioId, e);
+      }
+    }
+    dirty.clear();
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs each lane on virtual threads: every run of a lane takes a new virtual thread, and the JVM
+ * multiplexes them on a small pool of carrier threads.
+ *
+ * <p>
+ * The virtual threads API is looked up through reflection, so that the service can still be built
+ * and run on Java 8 with the other backends. Note that, until Java 24, a virtual thread which
+ * blocks while holding a monitor (e.g. while publishing within a synchronized block) pins its
+ * carrier thread.
+ */
+final class VirtualThreadBackend implements ExecutionBackend {
+
+  private final ExecutorService executor;
+
+  VirtualThreadBackend(String threadPrefix) {
+    try {
+      // Equivalent to Thread.ofVirtual().name(threadPrefix + "-", 1).factory()
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+        .invoke(builder, threadPrefix + "-", 1L);
+      ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+      // Equivalent to Executors.newThreadPerTaskExecutor(factory)
+      Method newExecutor =
+          Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      executor = (ExecutorService) newExecutor.invoke(null, factory);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Virtual threads require Java 21 or later", e);
+    }
+  }
+
+  @Override
+  public Executor newLaneExecutor() {
+    return executor;
+  }
+
+  @Override
+  public String toString() {
+    return "virtual threads";
+  }
+}
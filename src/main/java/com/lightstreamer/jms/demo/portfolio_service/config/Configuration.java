@@ -41,6 +41,82 @@ public class Configuration {
 
   public final int portfolioNum;
 
+  public final String portfolioIdPrefix;
+
+  public final int portfolioMaxNum;
+
+  public final int stockNum;
+
+  public final String stockFile;
+
+  public final String executionBackend;
+
+  public final int dispatchThreads;
+
+  public final int requestThreads;
+
+  public final int pipelineRingSize;
+
+  public final int changeLogSize;
+
+  public final int dispatchQueueCapacity;
+
+  public final String dispatchQueuePolicy;
+
+  public final long conflationInterval;
+
+  public final int conflationMaxPending;
+
+  public final int publishBatchSize;
+
+  public final long publishBatchInterval;
+
+  public final String messageCodec;
+
+  public final int publishSessions;
+
+  public final long metricsLogInterval;
+
+  public final String journalFile;
+
+  public final long journalSyncInterval;
+
+  public final boolean journalGroupCommit;
+
+  public final String checkpointFile;
+
+  public final long checkpointInterval;
+
+  public final int tradeRate;
+
+  public final int tradeThreads;
+
+  public final long tradeSeed;
+
+  public final String tradePortfolioDistribution;
+
+  public final String tradeStockDistribution;
+
+  public final double tradeZipfExponent;
+
+  public final double tradeBurstFactor;
+
+  public final long tradeBurstDuration;
+
+  public final long tradeBurstInterval;
+
+  public final String aggregateTopicName;
+
+  public final long aggregateInterval;
+
+  public final String valuationTopicName;
+
+  public final long valuationInterval;
+
+  public final String priceSource;
+
+  public final long priceInterval;
+
   public final String username;
 
   public final String password;
@@ -52,6 +128,44 @@ public class Configuration {
     this.topicName = builder.topicName;
     this.queueName = builder.queueName;
     this.portfolioNum = builder.portfolioNum;
+    this.portfolioIdPrefix = builder.portfolioIdPrefix;
+    this.portfolioMaxNum = builder.portfolioMaxNum;
+    this.stockNum = builder.stockNum;
+    this.stockFile = builder.stockFile;
+    this.executionBackend = builder.executionBackend;
+    this.dispatchThreads = builder.dispatchThreads;
+    this.requestThreads = builder.requestThreads;
+    this.pipelineRingSize = builder.pipelineRingSize;
+    this.changeLogSize = builder.changeLogSize;
+    this.dispatchQueueCapacity = builder.dispatchQueueCapacity;
+    this.dispatchQueuePolicy = builder.dispatchQueuePolicy;
+    this.conflationInterval = builder.conflationInterval;
+    this.conflationMaxPending = builder.conflationMaxPending;
+    this.publishBatchSize = builder.publishBatchSize;
+    this.publishBatchInterval = builder.publishBatchInterval;
+    this.messageCodec = builder.messageCodec;
+    this.publishSessions = builder.publishSessions;
+    this.metricsLogInterval = builder.metricsLogInterval;
+    this.journalFile = builder.journalFile;
+    this.journalSyncInterval = builder.journalSyncInterval;
+    this.journalGroupCommit = builder.journalGroupCommit;
+    this.checkpointFile = builder.checkpointFile;
+    this.checkpointInterval = builder.checkpointInterval;
+    this.tradeRate = builder.tradeRate;
+    this.tradeThreads = builder.tradeThreads;
+    this.tradeSeed = builder.tradeSeed;
+    this.tradePortfolioDistribution = builder.tradePortfolioDistribution;
+    this.tradeStockDistribution = builder.tradeStockDistribution;
+    this.tradeZipfExponent = builder.tradeZipfExponent;
+    this.tradeBurstFactor = builder.tradeBurstFactor;
+    this.tradeBurstDuration = builder.tradeBurstDuration;
+    this.tradeBurstInterval = builder.tradeBurstInterval;
+    this.aggregateTopicName = builder.aggregateTopicName;
+    this.aggregateInterval = builder.aggregateInterval;
+    this.valuationTopicName = builder.valuationTopicName;
+    this.valuationInterval = builder.valuationInterval;
+    this.priceSource = builder.priceSource;
+    this.priceInterval = builder.priceInterval;
     this.username = builder.username;
     this.password = builder.password;
   }
@@ -87,6 +201,82 @@ public class Configuration {
 
     private int portfolioNum;
 
+    private String portfolioIdPrefix = "portfolio";
+
+    private int portfolioMaxNum = 10;
+
+    private int stockNum = 30;
+
+    private String stockFile;
+
+    private String executionBackend = "shared";
+
+    private int dispatchThreads = Runtime.getRuntime().availableProcessors();
+
+    private int requestThreads;
+
+    private int pipelineRingSize;
+
+    private int changeLogSize = 16;
+
+    private int dispatchQueueCapacity;
+
+    private String dispatchQueuePolicy = "block";
+
+    private long conflationInterval;
+
+    private int conflationMaxPending = 1000;
+
+    private int publishBatchSize;
+
+    private long publishBatchInterval = 50;
+
+    private String messageCodec = "object";
+
+    private int publishSessions = 1;
+
+    private long metricsLogInterval = 60000;
+
+    private String journalFile;
+
+    private long journalSyncInterval = 10;
+
+    private boolean journalGroupCommit;
+
+    private String checkpointFile;
+
+    private long checkpointInterval = 60000;
+
+    private int tradeRate;
+
+    private int tradeThreads = 1;
+
+    private long tradeSeed;
+
+    private String tradePortfolioDistribution = "uniform";
+
+    private String tradeStockDistribution = "uniform";
+
+    private double tradeZipfExponent = 1.0;
+
+    private double tradeBurstFactor = 1.0;
+
+    private long tradeBurstDuration = 1000;
+
+    private long tradeBurstInterval = 10000;
+
+    private String aggregateTopicName;
+
+    private long aggregateInterval = 1000;
+
+    private String valuationTopicName;
+
+    private long valuationInterval = 1000;
+
+    private String priceSource = "simulated";
+
+    private long priceInterval = 100;
+
     private String username;
 
     private String password;
@@ -130,6 +320,188 @@ public class Configuration {
       return this;
     }
 
+    public Builder withPortfolioIdPrefix(String portfolioIdPrefix) {
+      this.portfolioIdPrefix = Optional.ofNullable(portfolioIdPrefix).orElse("portfolio");
+      return this;
+    }
+
+    public Builder withPortfolioMaxNum(String portfolioMaxNum) {
+      this.portfolioMaxNum = Optional.ofNullable(portfolioMaxNum)
+        .map(Integer::parseInt)
+        .orElse(10);
+      return this;
+    }
+
+    public Builder withStocks(String stockNum, String stockFile) {
+      this.stockNum = Optional.ofNullable(stockNum)
+        .map(Integer::parseInt)
+        .orElse(30);
+      this.stockFile = stockFile;
+      return this;
+    }
+
+    public Builder withExecutionBackend(String executionBackend) {
+      this.executionBackend = Optional.ofNullable(executionBackend).orElse("shared");
+      return this;
+    }
+
+    public Builder withDispatchThreads(String dispatchThreads) {
+      this.dispatchThreads = Optional.ofNullable(dispatchThreads)
+        .map(Integer::parseInt)
+        .orElse(Runtime.getRuntime().availableProcessors());
+      return this;
+    }
+
+    public Builder withRequestThreads(String requestThreads) {
+      this.requestThreads = Optional.ofNullable(requestThreads)
+        .map(Integer::parseInt)
+        .orElse(0);
+      return this;
+    }
+
+    public Builder withPipelineRingSize(String pipelineRingSize) {
+      this.pipelineRingSize = Optional.ofNullable(pipelineRingSize)
+        .map(Integer::parseInt)
+        .orElse(0);
+      return this;
+    }
+
+    public Builder withDispatchQueue(String dispatchQueueCapacity, String dispatchQueuePolicy) {
+      this.dispatchQueueCapacity = Optional.ofNullable(dispatchQueueCapacity)
+        .map(Integer::parseInt)
+        .orElse(0);
+      this.dispatchQueuePolicy = Optional.ofNullable(dispatchQueuePolicy).orElse("block");
+      return this;
+    }
+
+    public Builder withConflation(String conflationInterval, String conflationMaxPending) {
+      this.conflationInterval = Optional.ofNullable(conflationInterval)
+        .map(Long::parseLong)
+        .orElse(0L);
+      this.conflationMaxPending = Optional.ofNullable(conflationMaxPending)
+        .map(Integer::parseInt)
+        .orElse(1000);
+      return this;
+    }
+
+    public Builder withPublishBatch(String publishBatchSize, String publishBatchInterval) {
+      this.publishBatchSize = Optional.ofNullable(publishBatchSize)
+        .map(Integer::parseInt)
+        .orElse(0);
+      this.publishBatchInterval = Optional.ofNullable(publishBatchInterval)
+        .map(Long::parseLong)
+        .orElse(50L);
+      return this;
+    }
+
+    public Builder withMessageCodec(String messageCodec) {
+      this.messageCodec = Optional.ofNullable(messageCodec).orElse("object");
+      return this;
+    }
+
+    public Builder withPublishSessions(String publishSessions) {
+      this.publishSessions = Optional.ofNullable(publishSessions)
+        .map(Integer::parseInt)
+        .orElse(1);
+      return this;
+    }
+
+    public Builder withMetricsLogInterval(String metricsLogInterval) {
+      this.metricsLogInterval = Optional.ofNullable(metricsLogInterval)
+        .map(Long::parseLong)
+        .orElse(60000L);
+      return this;
+    }
+
+    public Builder withJournal(String journalFile, String journalSyncInterval,
+        String journalGroupCommit) {
+      this.journalFile = journalFile;
+      this.journalSyncInterval = Optional.ofNullable(journalSyncInterval)
+        .map(Long::parseLong)
+        .orElse(10L);
+      this.journalGroupCommit = Optional.ofNullable(journalGroupCommit)
+        .map(Boolean::parseBoolean)
+        .orElse(false);
+      return this;
+    }
+
+    public Builder withCheckpoint(String checkpointFile, String checkpointInterval) {
+      this.checkpointFile = checkpointFile;
+      this.checkpointInterval = Optional.ofNullable(checkpointInterval)
+        .map(Long::parseLong)
+        .orElse(60000L);
+      return this;
+    }
+
+    public Builder withTradeFlow(String tradeRate, String tradeThreads, String tradeSeed) {
+      this.tradeRate = Optional.ofNullable(tradeRate)
+        .map(Integer::parseInt)
+        .orElse(0);
+      this.tradeThreads = Optional.ofNullable(tradeThreads)
+        .map(Integer::parseInt)
+        .orElse(1);
+      this.tradeSeed = Optional.ofNullable(tradeSeed)
+        .map(Long::parseLong)
+        .orElse(0L);
+      return this;
+    }
+
+    public Builder withTradeDistributions(String tradePortfolioDistribution,
+        String tradeStockDistribution, String tradeZipfExponent) {
+      this.tradePortfolioDistribution =
+          Optional.ofNullable(tradePortfolioDistribution).orElse("uniform");
+      this.tradeStockDistribution = Optional.ofNullable(tradeStockDistribution).orElse("uniform");
+      this.tradeZipfExponent = Optional.ofNullable(tradeZipfExponent)
+        .map(Double::parseDouble)
+        .orElse(1.0);
+      return this;
+    }
+
+    public Builder withTradeBursts(String tradeBurstFactor, String tradeBurstDuration,
+        String tradeBurstInterval) {
+      this.tradeBurstFactor = Optional.ofNullable(tradeBurstFactor)
+        .map(Double::parseDouble)
+        .orElse(1.0);
+      this.tradeBurstDuration = Optional.ofNullable(tradeBurstDuration)
+        .map(Long::parseLong)
+        .orElse(1000L);
+      this.tradeBurstInterval = Optional.ofNullable(tradeBurstInterval)
+        .map(Long::parseLong)
+        .orElse(10000L);
+      return this;
+    }
+
+    public Builder withChangeLogSize(String changeLogSize) {
+      this.changeLogSize = Optional.ofNullable(changeLogSize)
+        .map(Integer::parseInt)
+        .orElse(16);
+      return this;
+    }
+
+    public Builder withAggregates(String aggregateTopicName, String aggregateInterval) {
+      this.aggregateTopicName = aggregateTopicName;
+      this.aggregateInterval = Optional.ofNullable(aggregateInterval)
+        .map(Long::parseLong)
+        .orElse(1000L);
+      return this;
+    }
+
+    public Builder withValuation(String valuationTopicName, String valuationInterval) {
+      this.valuationTopicName = valuationTopicName;
+      this.valuationInterval = Optional.ofNullable(valuationInterval)
+        .map(Long::parseLong)
+        .orElse(1000L);
+      return this;
+    }
+
+    public Builder withPriceSource(String priceSource, String priceInterval) {
+      this.priceSource = Optional.ofNullable(priceSource).orElse("simulated");
+      this.priceInterval = Optional.ofNullable(priceInterval)
+        .map(Long::parseLong)
+        .orElse(100L);
+      return this;
+    }
+
     public Builder withCredentials(String username, String password) {
       this.username = username;
       this.password = password;
@@ -137,6 +509,71 @@ public class Configuration {
     }
 
     public Configuration build() {
+      if (portfolioNum <= 0) {
+        throw new IllegalArgumentException("Please provide a positive <portfolioNum> entry");
+      }
+      if (portfolioMaxNum < portfolioNum) {
+        throw new IllegalArgumentException(
+            "The <portfolioMaxNum> entry cannot be less than the <portfolioNum> entry");
+      }
+      if (stockFile == null && (stockNum <= 0 || stockNum > 0xFFFF)) {
+        throw new IllegalArgumentException("The <stockNum> entry must be from 1 to 65535");
+      }
+      if (pipelineRingSize < 0
+          || (pipelineRingSize > 0 && Integer.bitCount(pipelineRingSize) != 1)) {
+        throw new IllegalArgumentException(
+            "The <pipelineRingSize> entry must be a power of 2, or 0 to disable the pipeline");
+      }
+      if (changeLogSize < 0) {
+        throw new IllegalArgumentException("The <changeLogSize> entry cannot be negative");
+      }
+      if (dispatchQueueCapacity < 0) {
+        throw new IllegalArgumentException("The <dispatchQueueCapacity> entry cannot be negative");
+      }
+      if (publishSessions <= 0) {
+        throw new IllegalArgumentException("Please provide a positive <publishSessions> entry");
+      }
+      if (publishBatchSize > 0 && publishBatchInterval <= 0) {
+        throw new IllegalArgumentException(
+            "Please provide a positive <publishBatchInterval> entry");
+      }
+      if (journalFile != null && journalSyncInterval <= 0) {
+        throw new IllegalArgumentException("Please provide a positive <journalSyncInterval> entry");
+      }
+      if (checkpointFile != null && checkpointInterval <= 0) {
+        throw new IllegalArgumentException("Please provide a positive <checkpointInterval> entry");
+      }
+      if (tradeRate < 0) {
+        throw new IllegalArgumentException("The <tradeRate> entry cannot be negative");
+      }
+      if (tradeRate > 0) {
+        if (tradeThreads <= 0) {
+          throw new IllegalArgumentException("Please provide a positive <tradeThreads> entry");
+        }
+        if (tradeZipfExponent <= 0) {
+          throw new IllegalArgumentException(
+              "Please provide a positive <tradeZipfExponent> entry");
+        }
+        if (tradeBurstFactor < 1) {
+          throw new IllegalArgumentException("The <tradeBurstFactor> entry cannot be less than 1");
+        }
+        if (tradeBurstFactor > 1
+            && (tradeBurstDuration <= 0 || tradeBurstInterval <= tradeBurstDuration)) {
+          throw new IllegalArgumentException("Please provide a positive <tradeBurstDuration> "
+              + "entry, less than the <tradeBurstInterval> entry");
+        }
+      }
+      if (aggregateTopicName != null && aggregateInterval <= 0) {
+        throw new IllegalArgumentException("Please provide a positive <aggregateInterval> entry");
+      }
+      if (valuationTopicName != null) {
+        if (valuationInterval <= 0) {
+          throw new IllegalArgumentException("Please provide a positive <valuationInterval> entry");
+        }
+        if (priceInterval <= 0) {
+          throw new IllegalArgumentException("Please provide a positive <priceInterval> entry");
+        }
+      }
       return new Configuration(this);
     }
 
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Ships a {@link PortfolioMessage} as a <code>BytesMessage</code> with a compact binary layout:
+ *
+ * <pre>
+ * type      : 1 byte, 1 for a PortfolioMessage
+ * portfolio : 2 bytes length + UTF-8 bytes
+ * key       : 2 bytes length + UTF-8 bytes
+ * qty       : 8 bytes
+ * version   : 8 bytes
+ * </pre>
+ *
+ * A {@link PortfolioSnapshotMessage} is shipped with the following layout:
+ *
+ * <pre>
+ * type      : 1 byte, 2 for a PortfolioSnapshotMessage
+ * portfolio : 2 bytes length + UTF-8 bytes
+ * version   : 8 bytes
+ * delta     : 1 byte, 1 if only the changes are carried, 0 otherwise
+ * count     : 4 bytes
+ * count times:
+ *   key     : 2 bytes length + UTF-8 bytes
+ *   qty     : 8 bytes
+ * </pre>
+ *
+ * A {@link PortfolioValuationMessage} is shipped with the following layout:
+ *
+ * <pre>
+ * type      : 1 byte, 3 for a PortfolioValuationMessage
+ * portfolio : 2 bytes length + UTF-8 bytes
+ * value     : 8 bytes
+ * </pre>
+ *
+ * All the numbers are big-endian, so the body can be read through the <code>readByte</code>,
+ * <code>readShort</code> and <code>readLong</code> methods of <code>BytesMessage</code> as well.
+ *
+ * <p>
+ * The layout of each message is computed once and kept by the message, so that a snapshot shared by
+ * many status responses is encoded only once.
+ */
+public class BytesMessageCodec implements PortfolioMessageCodec {
+
+  static final byte UPDATE = 1;
+
+  static final byte SNAPSHOT = 2;
+
+  static final byte VALUATION = 3;
+
+  /**
+   * The max length of an encoded string, as carried by its 2 bytes length.
+   */
+  private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+  @Override
+  public Message encode(Session session, PortfolioMessage message) throws JMSException {
+    BytesMessage bytesMessage = session.createBytesMessage();
+    bytesMessage.writeBytes(message.toBytes());
+    return bytesMessage;
+  }
+
+  @Override
+  public PortfolioMessage decode(Message message) throws JMSException {
+    BytesMessage bytesMessage = (BytesMessage) message;
+    byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
+    bytesMessage.readBytes(bytes);
+    return fromBytes(bytes);
+  }
+
+  @Override
+  public Message encode(Session session, PortfolioSnapshotMessage snapshot) throws JMSException {
+    BytesMessage bytesMessage = session.createBytesMessage();
+    bytesMessage.writeBytes(snapshot.toBytes());
+    return bytesMessage;
+  }
+
+  @Override
+  public PortfolioSnapshotMessage decodeSnapshot(Message message) throws JMSException {
+    BytesMessage bytesMessage = (BytesMessage) message;
+    byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
+    bytesMessage.readBytes(bytes);
+    return snapshotFromBytes(bytes);
+  }
+
+  @Override
+  public Message encode(Session session, PortfolioValuationMessage valuation)
+      throws JMSException {
+    BytesMessage bytesMessage = session.createBytesMessage();
+    bytesMessage.writeBytes(toBytes(valuation));
+    return bytesMessage;
+  }
+
+  @Override
+  public PortfolioValuationMessage decodeValuation(Message message) throws JMSException {
+    BytesMessage bytesMessage = (BytesMessage) message;
+    byte[] bytes = new byte[(int) bytesMessage.getBodyLength()];
+    bytesMessage.readBytes(bytes);
+    return valuationFromBytes(bytes);
+  }
+
+  /**
+   * Encodes the provided message according to the binary layout.
+   *
+   * @throws IllegalArgumentException if a string is longer than 65535 bytes once encoded.
+   */
+  public static byte[] toBytes(PortfolioMessage message) {
+    byte[] portfolioId = utf8(message.portfolioId);
+    byte[] key = utf8(message.key);
+
+    ByteBuffer buffer =
+        ByteBuffer.allocate(1 + 2 + portfolioId.length + 2 + key.length + 8 + 8);
+    buffer.put(UPDATE);
+    buffer.putShort((short) portfolioId.length).put(portfolioId);
+    buffer.putShort((short) key.length).put(key);
+    buffer.putLong(message.qty);
+    buffer.putLong(message.version);
+    return buffer.array();
+  }
+
+  /**
+   * Decodes a message encoded according to the binary layout.
+   */
+  public static PortfolioMessage fromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    checkType(buffer, UPDATE);
+
+    String portfolioId = readString(buffer);
+    String key = readString(buffer);
+    long qty = buffer.getLong();
+    long version = buffer.getLong();
+    return new PortfolioMessage(portfolioId, key, qty, version);
+  }
+
+  /**
+   * Encodes the provided snapshot according to the binary layout.
+   *
+   * @throws IllegalArgumentException if a string is longer than 65535 bytes once encoded.
+   */
+  public static byte[] toBytes(PortfolioSnapshotMessage snapshot) {
+    byte[] portfolioId = utf8(snapshot.portfolioId);
+    byte[][] keys = new byte[snapshot.keys.length][];
+    int length = 1 + 2 + portfolioId.length + 8 + 1 + 4;
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = utf8(snapshot.keys[i]);
+      length += 2 + keys[i].length + 8;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.put(SNAPSHOT);
+    buffer.putShort((short) portfolioId.length).put(portfolioId);
+    buffer.putLong(snapshot.version);
+    buffer.put((byte) (snapshot.delta ? 1 : 0));
+    buffer.putInt(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      buffer.putShort((short) keys[i].length).put(keys[i]);
+      buffer.putLong(snapshot.qtys[i]);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Decodes a snapshot encoded according to the binary layout.
+   */
+  public static PortfolioSnapshotMessage snapshotFromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    checkType(buffer, SNAPSHOT);
+
+    String portfolioId = readString(buffer);
+    long version = buffer.getLong();
+    boolean delta = buffer.get() != 0;
+    int count = buffer.getInt();
+    String[] keys = new String[count];
+    long[] qtys = new long[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = readString(buffer);
+      qtys[i] = buffer.getLong();
+    }
+    return new PortfolioSnapshotMessage(portfolioId, keys, qtys, version, delta);
+  }
+
+  /**
+   * Encodes the provided valuation according to the binary layout.
+   *
+   * @throws IllegalArgumentException if a string is longer than 65535 bytes once encoded.
+   */
+  public static byte[] toBytes(PortfolioValuationMessage valuation) {
+    byte[] portfolioId = utf8(valuation.portfolioId);
+
+    ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + portfolioId.length + 8);
+    buffer.put(VALUATION);
+    buffer.putShort((short) portfolioId.length).put(portfolioId);
+    buffer.putLong(valuation.value);
+    return buffer.array();
+  }
+
+  /**
+   * Decodes a valuation encoded according to the binary layout.
+   */
+  public static PortfolioValuationMessage valuationFromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    checkType(buffer, VALUATION);
+
+    String portfolioId = readString(buffer);
+    long value = buffer.getLong();
+    return new PortfolioValuationMessage(portfolioId, value);
+  }
+
+  private static void checkType(ByteBuffer buffer, byte expected) {
+    byte type = buffer.get();
+    if (type != expected) {
+      throw new IllegalArgumentException("Unexpected binary layout type: " + type);
+    }
+  }
+
+  /**
+   * Encodes a string in UTF-8, checking that its length fits in the 2 bytes of the layout.
+   *
+   * @throws IllegalArgumentException if the encoded string is longer than 65535 bytes.
+   */
+  private static byte[] utf8(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_STRING_LENGTH) {
+      throw new IllegalArgumentException("String too long for the binary layout: " + bytes.length
+          + " bytes");
+    }
+    return bytes;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Ships a {@link PortfolioMessage} as a <code>MapMessage</code>, whose entries are named after the
+ * fields of the PortfolioMessage class. A {@link PortfolioSnapshotMessage} is shipped with the
+ * portfolio id, the version, the delta flag, the number of stocks and, for each stock i, the
+ * "key.i" and "qty.i" entries. A
+ * {@link PortfolioValuationMessage} is shipped with the portfolio id and the "value" entry.
+ */
+public class MapMessageCodec implements PortfolioMessageCodec {
+
+  static final String PORTFOLIO_ID = "portfolioId";
+
+  static final String KEY = "key";
+
+  static final String QTY = "qty";
+
+  static final String VERSION = "version";
+
+  static final String DELTA = "delta";
+
+  static final String COUNT = "count";
+
+  static final String VALUE = "value";
+
+  @Override
+  public Message encode(Session session, PortfolioMessage message) throws JMSException {
+    MapMessage mapMessage = session.createMapMessage();
+    mapMessage.setString(PORTFOLIO_ID, message.portfolioId);
+    mapMessage.setString(KEY, message.key);
+    mapMessage.setLong(QTY, message.qty);
+    mapMessage.setLong(VERSION, message.version);
+    return mapMessage;
+  }
+
+  @Override
+  public PortfolioMessage decode(Message message) throws JMSException {
+    MapMessage mapMessage = (MapMessage) message;
+    return new PortfolioMessage(mapMessage.getString(PORTFOLIO_ID), mapMessage.getString(KEY),
+        mapMessage.getLong(QTY), mapMessage.getLong(VERSION));
+  }
+
+  @Override
+  public Message encode(Session session, PortfolioSnapshotMessage snapshot) throws JMSException {
+    MapMessage mapMessage = session.createMapMessage();
+    mapMessage.setString(PORTFOLIO_ID, snapshot.portfolioId);
+    mapMessage.setLong(VERSION, snapshot.version);
+    mapMessage.setBoolean(DELTA, snapshot.delta);
+    mapMessage.setInt(COUNT, snapshot.keys.length);
+    for (int i = 0; i < snapshot.keys.length; i++) {
+      mapMessage.setString(KEY + "." + i, snapshot.keys[i]);
+      mapMessage.setLong(QTY + "." + i, snapshot.qtys[i]);
+    }
+    return mapMessage;
+  }
+
+  @Override
+  public PortfolioSnapshotMessage decodeSnapshot(Message message) throws JMSException {
+    MapMessage mapMessage = (MapMessage) message;
+    int count = mapMessage.getInt(COUNT);
+    String[] keys = new String[count];
+    long[] qtys = new long[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = mapMessage.getString(KEY + "." + i);
+      qtys[i] = mapMessage.getLong(QTY + "." + i);
+    }
+    return new PortfolioSnapshotMessage(mapMessage.getString(PORTFOLIO_ID), keys, qtys,
+        mapMessage.getLong(VERSION), mapMessage.getBoolean(DELTA));
+  }
+
+  @Override
+  public Message encode(Session session, PortfolioValuationMessage valuation)
+      throws JMSException {
+    MapMessage mapMessage = session.createMapMessage();
+    mapMessage.setString(PORTFOLIO_ID, valuation.portfolioId);
+    mapMessage.setLong(VALUE, valuation.value);
+    return mapMessage;
+  }
+
+  @Override
+  public PortfolioValuationMessage decodeValuation(Message message) throws JMSException {
+    MapMessage mapMessage = (MapMessage) message;
+    return new PortfolioValuationMessage(mapMessage.getString(PORTFOLIO_ID),
+        mapMessage.getLong(VALUE));
+  }
+}
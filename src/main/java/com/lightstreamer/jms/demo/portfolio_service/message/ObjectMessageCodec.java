@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+/**
+ * Ships a {@link PortfolioMessage}, a {@link PortfolioSnapshotMessage} or a
+ * {@link PortfolioValuationMessage} as a Java-serialized
+ * <code>ObjectMessage</code>. This is the default codec, although it requires the message classes to
+ * be deployed on the JMS Extender.
+ */
+public class ObjectMessageCodec implements PortfolioMessageCodec {
+
+  @Override
+  public Message encode(Session session, PortfolioMessage message) throws JMSException {
+    return session.createObjectMessage(message);
+  }
+
+  @Override
+  public PortfolioMessage decode(Message message) throws JMSException {
+    return (PortfolioMessage) ((ObjectMessage) message).getObject();
+  }
+
+  @Override
+  public Message encode(Session session, PortfolioSnapshotMessage snapshot) throws JMSException {
+    return session.createObjectMessage(snapshot);
+  }
+
+  @Override
+  public PortfolioSnapshotMessage decodeSnapshot(Message message) throws JMSException {
+    return (PortfolioSnapshotMessage) ((ObjectMessage) message).getObject();
+  }
+
+  @Override
+  public Message encode(Session session, PortfolioValuationMessage valuation)
+      throws JMSException {
+    return session.createObjectMessage(valuation);
+  }
+
+  @Override
+  public PortfolioValuationMessage decodeValuation(Message message) throws JMSException {
+    return (PortfolioValuationMessage) ((ObjectMessage) message).getObject();
+  }
+}
@@ -33,9 +33,38 @@ public class PortfolioMessage implements Serializable {
   // The quantity
   public final long qty;
 
+  // The version of the portfolio which includes this quantity; 0 if not versioned
+  public final long version;
+
+  // The binary layout of the BytesMessage codec, built upon first need, as the message may be
+  // sent many times, e.g. as part of a shared snapshot
+  private transient volatile byte[] bytes;
+
   public PortfolioMessage(String portfolioId, String key, long qty) {
+    this(portfolioId, key, qty, 0);
+  }
+
+  public PortfolioMessage(String portfolioId, String key, long qty, long version) {
     this.portfolioId = portfolioId;
     this.key = key;
     this.qty = qty;
+    this.version = version;
+  }
+
+  /**
+   * Returns the binary layout of the BytesMessage codec; the returned array must not be changed.
+   */
+  byte[] toBytes() {
+    byte[] current = bytes;
+    if (current == null) {
+      current = BytesMessageCodec.toBytes(this);
+      bytes = current;
+    }
+    return current;
+  }
+
+  @Override
+  public String toString() {
+    return portfolioId + "|" + key + "|" + qty + "|v" + version;
   }
 }
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+
+/**
+ * Converts a {@link PortfolioMessage} or a {@link PortfolioSnapshotMessage} to and from a JMS
+ * message. The codec is selected per deployment, and must match the one expected by the clients.
+ * The {@link PortfolioValuationMessage}, which is only published if the valuation is enabled, is
+ * supported by the built-in codecs only, unless a custom codec overrides the related methods.
+ */
+public interface PortfolioMessageCodec {
+
+  /**
+   * Creates, on the provided session, the JMS message carrying <code>message</code>.
+   */
+  Message encode(Session session, PortfolioMessage message) throws JMSException;
+
+  /**
+   * Extracts the PortfolioMessage carried by a JMS message created by {@link #encode}.
+   */
+  PortfolioMessage decode(Message message) throws JMSException;
+
+  /**
+   * Creates, on the provided session, the JMS message carrying <code>snapshot</code>.
+   */
+  Message encode(Session session, PortfolioSnapshotMessage snapshot) throws JMSException;
+
+  /**
+   * Extracts the PortfolioSnapshotMessage carried by a JMS message created by {@link #encode}.
+   */
+  PortfolioSnapshotMessage decodeSnapshot(Message message) throws JMSException;
+
+  /**
+   * Creates, on the provided session, the JMS message carrying <code>valuation</code>.
+   */
+  default Message encode(Session session, PortfolioValuationMessage valuation)
+      throws JMSException {
+    throw new UnsupportedOperationException(getClass().getName() + " does not support valuations");
+  }
+
+  /**
+   * Extracts the PortfolioValuationMessage carried by a JMS message created by {@link #encode}.
+   */
+  default PortfolioValuationMessage decodeValuation(Message message) throws JMSException {
+    throw new UnsupportedOperationException(getClass().getName() + " does not support valuations");
+  }
+
+  /**
+   * Returns the codec of the provided name, which can be either "object", "bytes", "map", or the
+   * fully qualified name of a class implementing this interface.
+   */
+  static PortfolioMessageCodec forName(String name) {
+    switch (name) {
+      case "object":
+        return new ObjectMessageCodec();
+
+      case "bytes":
+        return new BytesMessageCodec();
+
+      case "map":
+        return new MapMessageCodec();
+
+      default:
+        try {
+          return Class.forName(name)
+            .asSubclass(PortfolioMessageCodec.class)
+            .getDeclaredConstructor()
+            .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+          throw new IllegalArgumentException("Unknown message codec: " + name, e);
+        }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import java.io.Serializable;
+
+/**
+ * A message sent by Portfolio service in response to a status request, carrying the whole contents
+ * of a portfolio: the i-th stock key is associated with the i-th quantity.
+ *
+ * <p>
+ * A delta snapshot carries only the stocks changed since the version requested by the client,
+ * including the ones no longer held, with a 0 quantity; the stocks not carried are unchanged.
+ *
+ * <p>
+ * A snapshot must not be changed once built, as it may be shared by many responses: its single-stock
+ * messages and its encoded form for the bytes codec are computed upon first need and then reused;
+ * the other codecs encode the snapshot upon each response.
+ */
+public class PortfolioSnapshotMessage implements Serializable {
+
+  private static final long serialVersionUID = -2748219513320784532L;
+
+  // The portfolio ID
+  public final String portfolioId;
+
+  // The stock keys
+  public final String[] keys;
+
+  // The quantities
+  public final long[] qtys;
+
+  // The version of the portfolio these contents refer to; 0 if not versioned
+  public final long version;
+
+  // Whether only the changes since the requested version are carried
+  public final boolean delta;
+
+  // The single-stock messages, built upon first need
+  private transient volatile PortfolioMessage[] entries;
+
+  // The binary layout of the BytesMessage codec, built upon first need
+  private transient volatile byte[] bytes;
+
+  public PortfolioSnapshotMessage(String portfolioId, String[] keys, long[] qtys) {
+    this(portfolioId, keys, qtys, 0, false);
+  }
+
+  public PortfolioSnapshotMessage(String portfolioId, String[] keys, long[] qtys, long version,
+      boolean delta) {
+    if (keys.length != qtys.length) {
+      throw new IllegalArgumentException("Keys and quantities do not match");
+    }
+    this.portfolioId = portfolioId;
+    this.keys = keys;
+    this.qtys = qtys;
+    this.version = version;
+    this.delta = delta;
+  }
+
+  /**
+   * Returns the number of carried stocks.
+   */
+  public int size() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the i-th stock as a single-stock message, carrying the version of the snapshot; the
+   * same instance is returned upon each call.
+   */
+  public PortfolioMessage entry(int index) {
+    PortfolioMessage[] current = entries;
+    if (current == null) {
+      // Concurrent callers may build equivalent entries; any of them can be kept
+      current = new PortfolioMessage[keys.length];
+      for (int i = 0; i < current.length; i++) {
+        current[i] = new PortfolioMessage(portfolioId, keys[i], qtys[i], version);
+      }
+      entries = current;
+    }
+    return current[index];
+  }
+
+  /**
+   * Returns the binary layout of the BytesMessage codec; the returned array must not be changed.
+   */
+  byte[] toBytes() {
+    byte[] current = bytes;
+    if (current == null) {
+      current = BytesMessageCodec.toBytes(this);
+      bytes = current;
+    }
+    return current;
+  }
+
+  @Override
+  public String toString() {
+    return portfolioId + "|" + keys.length + " stocks" + (delta ? " changed" : "") + "|v"
+        + version;
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.message;
+
+import java.io.Serializable;
+
+/**
+ * A message published by Portfolio service, carrying the current market value of a portfolio, that
+ * is the sum of the quantities of its stocks times their current prices.
+ */
+public class PortfolioValuationMessage implements Serializable {
+
+  private static final long serialVersionUID = 5032286440914651297L;
+
+  // The portfolio ID
+  public final String portfolioId;
+
+  // The market value, in cents
+  public final long value;
+
+  public PortfolioValuationMessage(String portfolioId, long value) {
+    this.portfolioId = portfolioId;
+    this.value = value;
+  }
+
+  @Override
+  public String toString() {
+    return portfolioId + "|" + value;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of latencies, expressed in nanoseconds. The values are counted in
+ * log-linear buckets: each power of two is split into 8 linear sub-buckets, so that the percentiles
+ * are reported with a relative error below 12.5%, over the whole range of long values, in a fixed
+ * amount of memory.
+ *
+ * <p>
+ * Recording a value costs a few atomic increments and takes no lock; reading is not atomic with
+ * respect to concurrent recordings, which is fine for monitoring purposes.
+ */
+public final class LatencyHistogram {
+
+  /**
+   * The number of bits used to pick the sub-bucket within a power of two.
+   */
+  private static final int SUB_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a latency; negative values, caused by clock adjustments, are recorded as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0);
+    counts.incrementAndGet(bucketOf(value));
+    count.increment();
+    sum.add(value);
+    if (value > max.get()) {
+      max.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  /**
+   * Records the time elapsed since the provided {@link System#nanoTime()} reading.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns a summary of the values recorded so far.
+   */
+  public LatencyStats stats() {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    long maxNanos = max.get();
+    double mean = total == 0 ? 0 : (double) sum.sum() / count.sum();
+    return new LatencyStats(total, toMicros(mean),
+        toMicros(percentile(snapshot, total, 0.50, maxNanos)),
+        toMicros(percentile(snapshot, total, 0.90, maxNanos)),
+        toMicros(percentile(snapshot, total, 0.99, maxNanos)),
+        toMicros(percentile(snapshot, total, 0.999, maxNanos)), toMicros(maxNanos));
+  }
+
+  /**
+   * Returns the upper bound of the bucket where the provided percentile falls, capped to the max
+   * recorded value.
+   */
+  private static long percentile(long[] snapshot, long total, double percentile, long maxNanos) {
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = (long) Math.ceil(total * percentile);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), maxNanos);
+      }
+    }
+    return maxNanos;
+  }
+
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    int shift = (bucket >>> SUB_BITS) - 1;
+    long lowerBound = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  private static double toMicros(double nanos) {
+    return Math.round(nanos / 100.0) / 10.0;
+  }
+}
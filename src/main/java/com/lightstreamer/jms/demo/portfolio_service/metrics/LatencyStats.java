@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable summary of a {@link LatencyHistogram}, with the latencies expressed in microseconds.
+ * It is exposed through JMX as composite data.
+ */
+public final class LatencyStats {
+
+  private final long count;
+
+  private final double meanMicros;
+
+  private final double p50Micros;
+
+  private final double p90Micros;
+
+  private final double p99Micros;
+
+  private final double p999Micros;
+
+  private final double maxMicros;
+
+  @ConstructorProperties({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros",
+      "p999Micros", "maxMicros"})
+  public LatencyStats(long count, double meanMicros, double p50Micros, double p90Micros,
+      double p99Micros, double p999Micros, double maxMicros) {
+    this.count = count;
+    this.meanMicros = meanMicros;
+    this.p50Micros = p50Micros;
+    this.p90Micros = p90Micros;
+    this.p99Micros = p99Micros;
+    this.p999Micros = p999Micros;
+    this.maxMicros = maxMicros;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMeanMicros() {
+    return meanMicros;
+  }
+
+  public double getP50Micros() {
+    return p50Micros;
+  }
+
+  public double getP90Micros() {
+    return p90Micros;
+  }
+
+  public double getP99Micros() {
+    return p99Micros;
+  }
+
+  public double getP999Micros() {
+    return p999Micros;
+  }
+
+  public double getMaxMicros() {
+    return maxMicros;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + count + " mean=" + meanMicros + "us p50=" + p50Micros + "us p90="
+        + p90Micros + "us p99=" + p99Micros + "us p99.9=" + p999Micros + "us max=" + maxMicros
+        + "us";
+  }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects the latencies and the counters of the hot paths of the service. The metrics are exposed
+ * through JMX and, if configured, periodically dumped to the log.
+ *
+ * <p>
+ * The histograms and the counters are updated directly by the instrumented components, while the
+ * queue depths are sampled on demand through the suppliers provided by their owners.
+ */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+
+  public static final String OBJECT_NAME =
+      "com.lightstreamer.jms.demo.portfolio_service:type=ServiceMetrics";
+
+  private static Logger log = LoggerFactory.getLogger(ServiceMetrics.class);
+
+  public final LatencyHistogram requestLatency = new LatencyHistogram();
+
+  public final LatencyHistogram dispatchLatency = new LatencyHistogram();
+
+  public final LatencyHistogram publishLatency = new LatencyHistogram();
+
+  public final LongAdder statusRequests = new LongAdder();
+
+  public final LongAdder buyRequests = new LongAdder();
+
+  public final LongAdder sellRequests = new LongAdder();
+
+  public final LongAdder batchRequests = new LongAdder();
+
+  public final LongAdder aggregateRequests = new LongAdder();
+
+  public final LongAdder deltaStatusReplies = new LongAdder();
+
+  public final LongAdder rejectedOrders = new LongAdder();
+
+  public final LongAdder invalidRequests = new LongAdder();
+
+  public final LongAdder overloadRejections = new LongAdder();
+
+  public final LongAdder lostMessages = new LongAdder();
+
+  private volatile LongSupplier dispatchQueueDepth = () -> 0;
+
+  private volatile LongSupplier dispatchQueueMaxDepth = () -> 0;
+
+  private volatile LongSupplier droppedNotifications = () -> 0;
+
+  private volatile LongSupplier conflatedNotifications = () -> 0;
+
+  private volatile LongSupplier generatedTrades = () -> 0;
+
+  private volatile LongSupplier generatedTradeRejections = () -> 0;
+
+  private volatile LongSupplier requestQueueDepth = () -> 0;
+
+  private volatile LongSupplier requestQueueMaxDepth = () -> 0;
+
+  /**
+   * Creates the metrics and registers them in the platform MBean server.
+   *
+   * @param logIntervalMillis the interval of the log dumps, in milliseconds; 0 disables the dumps.
+   */
+  public ServiceMetrics(long logIntervalMillis) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+      log.info("Metrics registered as [{}]", OBJECT_NAME);
+    } catch (JMException e) {
+      log.warn("Unable to register the metrics in the MBean server", e);
+    }
+
+    if (logIntervalMillis > 0) {
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Portfolio-Metrics");
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleAtFixedRate(this::dump, logIntervalMillis, logIntervalMillis,
+          TimeUnit.MILLISECONDS);
+      log.info("Dumping metrics every {} ms", logIntervalMillis);
+    }
+  }
+
+  /**
+   * Provides the current and the max depth of the portfolio executors.
+   */
+  public void setDispatchQueueGauges(LongSupplier depth, LongSupplier maxDepth) {
+    this.dispatchQueueDepth = depth;
+    this.dispatchQueueMaxDepth = maxDepth;
+  }
+
+  /**
+   * Provides the number of notifications discarded and merged by the portfolio executors.
+   */
+  public void setDispatchOverflowGauges(LongSupplier dropped, LongSupplier conflated) {
+    this.droppedNotifications = dropped;
+    this.conflatedNotifications = conflated;
+  }
+
+  /**
+   * Provides the number of orders issued and refused by the simulated trade flow.
+   */
+  public void setTradeFlowGauges(LongSupplier trades, LongSupplier rejections) {
+    this.generatedTrades = trades;
+    this.generatedTradeRejections = rejections;
+  }
+
+  /**
+   * Provides the current and the max depth of the request lanes.
+   */
+  public void setRequestQueueGauges(LongSupplier depth, LongSupplier maxDepth) {
+    this.requestQueueDepth = depth;
+    this.requestQueueMaxDepth = maxDepth;
+  }
+
+  /**
+   * Writes the current metrics to the log.
+   */
+  public void dump() {
+    log.info("Requests: status={} (delta {}) buy={} sell={} batch={} aggregate={} rejected={}"
+        + " invalid={} overload={}", getStatusRequests(), getDeltaStatusReplies(),
+        getBuyRequests(), getSellRequests(), getBatchRequests(), getAggregateRequests(),
+        getRejectedOrders(), getInvalidRequests(), getOverloadRejections());
+    if (getGeneratedTrades() > 0) {
+      log.info("Generated trades: {} (refused {})", getGeneratedTrades(),
+          getGeneratedTradeRejections());
+    }
+    log.info("Request latency: {}", getRequestLatency());
+    log.info("Dispatch latency: {}", getDispatchLatency());
+    log.info("Publish latency: {} (lost {})", getPublishLatency(), getLostMessages());
+    log.info("Queues: dispatch={} (max {}, dropped {}, conflated {}) request={} (max {})",
+        getDispatchQueueDepth(), getDispatchQueueMaxDepth(), getDroppedNotifications(),
+        getConflatedNotifications(), getRequestQueueDepth(), getRequestQueueMaxDepth());
+  }
+
+  @Override
+  public LatencyStats getRequestLatency() {
+    return requestLatency.stats();
+  }
+
+  @Override
+  public LatencyStats getDispatchLatency() {
+    return dispatchLatency.stats();
+  }
+
+  @Override
+  public LatencyStats getPublishLatency() {
+    return publishLatency.stats();
+  }
+
+  @Override
+  public long getStatusRequests() {
+    return statusRequests.sum();
+  }
+
+  @Override
+  public long getBuyRequests() {
+    return buyRequests.sum();
+  }
+
+  @Override
+  public long getSellRequests() {
+    return sellRequests.sum();
+  }
+
+  @Override
+  public long getBatchRequests() {
+    return batchRequests.sum();
+  }
+
+  @Override
+  public long getAggregateRequests() {
+    return aggregateRequests.sum();
+  }
+
+  @Override
+  public long getDeltaStatusReplies() {
+    return deltaStatusReplies.sum();
+  }
+
+  @Override
+  public long getRejectedOrders() {
+    return rejectedOrders.sum();
+  }
+
+  @Override
+  public long getInvalidRequests() {
+    return invalidRequests.sum();
+  }
+
+  @Override
+  public long getOverloadRejections() {
+    return overloadRejections.sum();
+  }
+
+  @Override
+  public long getLostMessages() {
+    return lostMessages.sum();
+  }
+
+  @Override
+  public long getDroppedNotifications() {
+    return droppedNotifications.getAsLong();
+  }
+
+  @Override
+  public long getConflatedNotifications() {
+    return conflatedNotifications.getAsLong();
+  }
+
+  @Override
+  public long getGeneratedTrades() {
+    return generatedTrades.getAsLong();
+  }
+
+  @Override
+  public long getGeneratedTradeRejections() {
+    return generatedTradeRejections.getAsLong();
+  }
+
+  @Override
+  public long getDispatchQueueDepth() {
+    return dispatchQueueDepth.getAsLong();
+  }
+
+  @Override
+  public long getDispatchQueueMaxDepth() {
+    return dispatchQueueMaxDepth.getAsLong();
+  }
+
+  @Override
+  public long getRequestQueueDepth() {
+    return requestQueueDepth.getAsLong();
+  }
+
+  @Override
+  public long getRequestQueueMaxDepth() {
+    return requestQueueMaxDepth.getAsLong();
+  }
+}
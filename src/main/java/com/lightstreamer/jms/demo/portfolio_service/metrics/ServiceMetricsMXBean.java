@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.lightstreamer.jms.demo.portfolio_service.metrics;
+
+/**
+ * The management interface of {@link ServiceMetrics}. Latencies are reported in microseconds;
+ * counters and latencies are cumulated since the service start.
+ */
+public interface ServiceMetricsMXBean {
+
+  /**
+   * The time from the reception of a request to the end of its processing, including the time
+   * spent waiting for a request lane.
+   */
+  LatencyStats getRequestLatency();
+
+  /**
+   * The time from a portfolio change to the end of the listener notification, including the time
+   * spent in the queue of the portfolio.
+   */
+  LatencyStats getDispatchLatency();
+
+  /**
+   * The time spent sending an update on the topic, including the wait for the publishing session.
+   */
+  LatencyStats getPublishLatency();
+
+  long getStatusRequests();
+
+  /**
+   * The status requests answered with the changes since the requested version only, as the
+   * change log of the portfolio still covered it.
+   */
+  long getDeltaStatusReplies();
+
+  long getBuyRequests();
+
+  long getSellRequests();
+
+  long getBatchRequests();
+
+  long getAggregateRequests();
+
+  /**
+   * The buy and sell orders, either single or in a batch, refused because of an invalid stock or
+   * quantity.
+   */
+  long getRejectedOrders();
+
+  /**
+   * The requests dropped because malformed, of unknown type or for an unknown portfolio.
+   */
+  long getInvalidRequests();
+
+  /**
+   * The requests refused because the dispatch queue of the portfolio was full.
+   */
+  long getOverloadRejections();
+
+  /**
+   * The messages that could not be published on the topics, including the ones of a transaction
+   * that could be neither committed nor sent again.
+   */
+  long getLostMessages();
+
+  /**
+   * The notifications discarded because the dispatch queue of the portfolio was full.
+   */
+  long getDroppedNotifications();
+
+  /**
+   * The notifications merged into pending ones of the same stock.
+   */
+  long getConflatedNotifications();
+
+  /**
+   * The orders issued by the simulated trade flow.
+   */
+  long getGeneratedTrades();
+
+  /**
+   * The orders of the simulated trade flow refused because the dispatch queue of the portfolio was
+   * full.
+   */
+  long getGeneratedTradeRejections();
+
+  /**
+   * The notifications currently queued in the executors of all the portfolios.
+   */
+  long getDispatchQueueDepth();
+
+  /**
+   * The max number of notifications ever queued in the executor of a single portfolio.
+   */
+  long getDispatchQueueMaxDepth();
+
+  /**
+   * The requests currently queued in all the request lanes.
+   */
+  long getRequestQueueDepth();
+
+  /**
+   * The max number of requests ever queued in a single request lane.
+   */
+  long getRequestQueueMaxDepth();
+}